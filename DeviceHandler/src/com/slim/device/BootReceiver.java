@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 import com.slim.device.KernelControl;
 import com.slim.device.settings.ScreenOffGesture;
@@ -37,15 +38,19 @@ import java.io.File;
 
 
 public class BootReceiver extends BroadcastReceiver {
+    private static final String TAG = "BootReceiver";
+    private static final long KERNEL_WRITE_TIMEOUT = 1000;
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
         if (intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
                 enableComponent(context, ScreenOffGesture.class.getName());
                 SharedPreferences screenOffGestureSharedPreferences = context.getSharedPreferences(
                         ScreenOffGesture.GESTURE_SETTINGS, Activity.MODE_PRIVATE);
-                KernelControl.enableGestures(
-                        screenOffGestureSharedPreferences.getBoolean(
-                        ScreenOffGesture.PREF_GESTURE_ENABLE, true));
+                KernelControl.enableGestures(screenOffGestureSharedPreferences);
+                if (!KernelControl.flush(KERNEL_WRITE_TIMEOUT)) {
+                    Log.w(TAG, "Timed out applying gesture settings");
+                }
             }
 
             // Disable slider settings if needed
@@ -61,9 +66,13 @@ public class BootReceiver extends BroadcastReceiver {
                 String sliderMiddle = "" + SLIDER_MIDDLE;
                 String sliderBottom = "" + SLIDER_BOTTOM;
 
-                FileUtils.writeLine(KernelControl.KEYCODE_SLIDER_TOP, sliderTop);
-                FileUtils.writeLine(KernelControl.KEYCODE_SLIDER_MIDDLE, sliderMiddle);
-                FileUtils.writeLine(KernelControl.KEYCODE_SLIDER_BOTTOM, sliderBottom);
+                KernelControl.Capabilities capabilities = KernelControl.getCapabilities();
+                FileUtils.writeLine(capabilities.getSliderNode(KernelControl.SLIDER_NODE_TOP),
+                        sliderTop);
+                FileUtils.writeLine(capabilities.getSliderNode(KernelControl.SLIDER_NODE_MIDDLE),
+                        sliderMiddle);
+                FileUtils.writeLine(capabilities.getSliderNode(KernelControl.SLIDER_NODE_BOTTOM),
+                        sliderBottom);
                 */
             }
     }
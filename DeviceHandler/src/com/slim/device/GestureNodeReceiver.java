@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slim.device;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+import java.util.Map;
+
+/**
+ * Writes the gesture node states KeyHandler asks for. KeyHandler runs in
+ * system_server, which isn't allowed to write the touchpanel nodes, so it
+ * sends an ordered broadcast here and gets the drift counts back as the
+ * result extras once the writes are done.
+ */
+public class GestureNodeReceiver extends BroadcastReceiver {
+
+    public static final String ACTION_SET_GESTURE_NODES =
+            "com.slim.device.action.SET_GESTURE_NODES";
+    // Read the nodes back and restore drifted ones instead of trusting the last write
+    public static final String EXTRA_VERIFY = "verify";
+    // Besides that, one boolean per ScreenOffGesture.PREF_GESTURE_* key: armed or not
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (!ACTION_SET_GESTURE_NODES.equals(intent.getAction()) || extras == null) {
+            return;
+        }
+        final PendingResult result = goAsync();
+        KernelControl.setGestures(extras, extras.getBoolean(EXTRA_VERIFY));
+        KernelControl.flush(new Runnable() {
+            @Override
+            public void run() {
+                Bundle drift = new Bundle();
+                for (Map.Entry<String, Integer> entry : KernelControl.getDriftCounts().entrySet()) {
+                    drift.putInt(entry.getKey(), entry.getValue());
+                }
+                result.setResultExtras(drift);
+                result.finish();
+            }
+        });
+    }
+}
@@ -16,9 +16,18 @@
 
 package com.slim.device;
 
-import com.slim.device.util.FileUtils;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.internal.util.gzosp.ActionConstants;
+
+import com.slim.device.settings.ScreenOffGesture;
+import com.slim.device.util.KernelNodeWriter;
 
 import java.io.File;
+import java.util.Map;
 
 /*
  * Very ugly class which enables or disables for now
@@ -31,56 +40,269 @@ import java.io.File;
 
 public final class KernelControl {
 
-    private static String GESTURE_PATH = "/proc/touchpanel/";
-    private static String GESTURE_CAMERA           = GESTURE_PATH + "letter_o_enable";
-    private static String GESTURE_FLASHLIGHT       = GESTURE_PATH + "up_arrow_enable";
-    private static String GESTURE_MEDIA            = GESTURE_PATH + "double_swipe_enable";
-    private static String GESTURE_MEDIA_PREVIOUS	= GESTURE_PATH + "right_arrow_enable";
-    private static String GESTURE_MEDIA_NEXT		= GESTURE_PATH + "left_arrow_enable";
-    private static String GESTURE_SILENT_VIB_SOUND = GESTURE_PATH + "down_arrow_enable";
-
-    // Notification slider
-    public static final String KEYCODE_SLIDER_TOP = "/proc/tri-state-key/keyCode_top";
-    public static final String KEYCODE_SLIDER_MIDDLE = "/proc/tri-state-key/keyCode_middle";
-    public static final String KEYCODE_SLIDER_BOTTOM = "/proc/tri-state-key/keyCode_bottom";
-
-    private static String[] GESTURE_CONTROL_NODES = {
-            GESTURE_CAMERA,
-            GESTURE_FLASHLIGHT ,
-            GESTURE_MEDIA,
-            GESTURE_MEDIA_PREVIOUS,
-            GESTURE_MEDIA_NEXT,
-            GESTURE_SILENT_VIB_SOUND
+    private static final String TAG = "KernelControl";
+
+    private static final String DEFAULT_NODE_ROOT = "/";
+
+    // Notification slider keycode nodes, see Capabilities.getSliderNode()
+    public static final int SLIDER_NODE_TOP = 0;
+    public static final int SLIDER_NODE_MIDDLE = 1;
+    public static final int SLIDER_NODE_BOTTOM = 2;
+
+    // Gesture control nodes, relative to the node root
+    private static String[] GESTURE_NODES = {
+            // camera
+            "proc/touchpanel/letter_o_enable",
+            // flashlight
+            "proc/touchpanel/up_arrow_enable",
+            // media play/pause
+            "proc/touchpanel/double_swipe_enable",
+            // media previous
+            "proc/touchpanel/right_arrow_enable",
+            // media next
+            "proc/touchpanel/left_arrow_enable",
+            // silent/vibrate/sound
+            "proc/touchpanel/down_arrow_enable"
     };
 
+    // Gesture setting controlling each of GESTURE_NODES
+    private static String[] GESTURE_PREF_KEYS = {
+            ScreenOffGesture.PREF_GESTURE_CIRCLE,
+            ScreenOffGesture.PREF_GESTURE_ARROW_UP,
+            ScreenOffGesture.PREF_GESTURE_DOUBLE_SWIPE,
+            ScreenOffGesture.PREF_GESTURE_ARROW_LEFT,
+            ScreenOffGesture.PREF_GESTURE_ARROW_RIGHT,
+            ScreenOffGesture.PREF_GESTURE_ARROW_DOWN
+    };
+
+    // Indexed by SLIDER_NODE_*
+    private static String[] SLIDER_NODES = {
+            "proc/tri-state-key/keyCode_top",
+            "proc/tri-state-key/keyCode_middle",
+            "proc/tri-state-key/keyCode_bottom"
+    };
+
+    private static volatile String sNodeRoot = DEFAULT_NODE_ROOT;
+    private static volatile Capabilities sCapabilities;
+
     private KernelControl() {
         // this class is not supposed to be instantiated
     }
 
+    /**
+     * The control nodes the running kernel exposes, probed once against the
+     * node root.
+     */
+    public static final class Capabilities {
+        private final String mRoot;
+        private final String[] mGestureNodes;
+        private final boolean[] mGestureWritable;
+        private final String[] mSliderNodes;
+
+        private Capabilities(String root) {
+            mRoot = root;
+            mGestureNodes = resolve(root, GESTURE_NODES);
+            mGestureWritable = new boolean[mGestureNodes.length];
+            for (int i = 0; i < mGestureNodes.length; i++) {
+                mGestureWritable[i] = mGestureNodes[i] != null
+                        && new File(mGestureNodes[i]).canWrite();
+            }
+            mSliderNodes = resolve(root, SLIDER_NODES);
+        }
+
+        private static String[] resolve(String root, String[] paths) {
+            String[] nodes = new String[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                File node = new File(root, paths[i]);
+                if (node.exists()) {
+                    nodes[i] = node.getPath();
+                }
+            }
+            return nodes;
+        }
+
+        /**
+         * @return resolved path of the gesture node, null if the kernel has none
+         */
+        public String getGestureNode(int index) {
+            return mGestureNodes[index];
+        }
+
+        public boolean isGestureNodeWritable(int index) {
+            return mGestureWritable[index];
+        }
+
+        /**
+         * @return resolved path of the slider keycode node, null if the kernel has none
+         */
+        public String getSliderNode(int index) {
+            return mSliderNodes[index];
+        }
+
+        public boolean hasTouchscreenGestures() {
+            // camera, flashlight and media
+            return mGestureNodes[0] != null && mGestureNodes[1] != null
+                    && mGestureNodes[2] != null;
+        }
+
+        public boolean hasSlider() {
+            for (String node : mSliderNodes) {
+                if (node == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("KernelControl.Capabilities{root=")
+                    .append(mRoot);
+            for (int i = 0; i < mGestureNodes.length; i++) {
+                sb.append(' ').append(GESTURE_NODES[i]).append('=')
+                        .append(mGestureNodes[i] == null ? "-" : mGestureNodes[i])
+                        .append(mGestureWritable[i] ? " (rw)" : "");
+            }
+            for (int i = 0; i < mSliderNodes.length; i++) {
+                sb.append(' ').append(SLIDER_NODES[i]).append('=')
+                        .append(mSliderNodes[i] == null ? "-" : mSliderNodes[i]);
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    /**
+     * Resolve all nodes against a temporary directory holding a fake node
+     * tree, null to go back to the real one.
+     */
+    static void setNodeRoot(String root) {
+        sNodeRoot = root != null ? root : DEFAULT_NODE_ROOT;
+        probe();
+    }
+
+    /**
+     * Capabilities of the running kernel, probed on first use.
+     */
+    public static Capabilities getCapabilities() {
+        Capabilities capabilities = sCapabilities;
+        if (capabilities == null) {
+            capabilities = probe();
+        }
+        return capabilities;
+    }
+
+    private static Capabilities probe() {
+        Capabilities capabilities = new Capabilities(sNodeRoot);
+        sCapabilities = capabilities;
+        Log.i(TAG, capabilities.toString());
+        for (int i = 0; i < GESTURE_NODES.length; i++) {
+            // Usually missing sepolicy / ownership for the calling process
+            if (capabilities.getGestureNode(i) != null && !capabilities.isGestureNodeWritable(i)) {
+                Log.w(TAG, capabilities.getGestureNode(i) + " is not writable by uid "
+                        + Process.myUid() + ", gestures can't be (dis)armed from here");
+            }
+        }
+        return capabilities;
+    }
+
     /**
      * Enable or disable gesture control.
      */
     public static void enableGestures(boolean enable) {
-        for (int i = 0; i < GESTURE_CONTROL_NODES.length; i++) {
-            if (new File(GESTURE_CONTROL_NODES[i]).exists()) {
-                FileUtils.writeLine(GESTURE_CONTROL_NODES[i], enable ? "1" : "0");
+        int[] values = new int[GESTURE_NODES.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = enable ? 1 : 0;
+        }
+        writeGestureNodes(values, false);
+    }
+
+    /**
+     * Enable only the gestures that have an action assigned in the given
+     * gesture settings, so unused ones stop waking up the touch controller.
+     */
+    public static void enableGestures(SharedPreferences prefs) {
+        writeGestureNodes(getGestureValues(prefs), false);
+    }
+
+    /**
+     * Arms the gestures whose ScreenOffGesture.PREF_GESTURE_* key maps to
+     * true in the given bundle and disarms the rest. With verify, the nodes
+     * are read back and only the ones that don't match get written; some
+     * kernels reset them across suspend or touch firmware reloads, see
+     * getDriftCounts().
+     */
+    public static void setGestures(Bundle armed, boolean verify) {
+        int[] values = new int[GESTURE_NODES.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = armed.getBoolean(GESTURE_PREF_KEYS[i]) ? 1 : 0;
+        }
+        writeGestureNodes(values, verify);
+    }
+
+    /**
+     * @return how often each node was found reset, by path
+     */
+    public static Map<String, Integer> getDriftCounts() {
+        return KernelNodeWriter.getInstance().getDriftCounts();
+    }
+
+    private static int[] getGestureValues(SharedPreferences prefs) {
+        boolean enable = prefs.getBoolean(ScreenOffGesture.PREF_GESTURE_ENABLE, true);
+        int[] values = new int[GESTURE_NODES.length];
+        for (int i = 0; i < values.length; i++) {
+            // Missing entries mean the default action, which is never ACTION_NULL
+            boolean armed = enable && !ActionConstants.ACTION_NULL.equals(
+                    prefs.getString(GESTURE_PREF_KEYS[i], null));
+            values[i] = armed ? 1 : 0;
+        }
+        return values;
+    }
+
+    /**
+     * Queues values[i] for every writable gesture node i. The writes happen
+     * in the background, see flush() for callers that need them applied.
+     */
+    private static void writeGestureNodes(int[] values, boolean verify) {
+        Capabilities capabilities = getCapabilities();
+        KernelNodeWriter writer = KernelNodeWriter.getInstance();
+        for (int i = 0; i < GESTURE_NODES.length; i++) {
+            if (!capabilities.isGestureNodeWritable(i)) {
+                continue;
+            }
+            if (verify) {
+                writer.verify(capabilities.getGestureNode(i), values[i]);
+            } else {
+                writer.write(capabilities.getGestureNode(i), values[i]);
             }
         }
     }
 
+    /**
+     * Waits until all queued node writes were applied.
+     *
+     * @return false if that didn't happen within the timeout
+     */
+    public static boolean flush(long timeoutMillis) {
+        return KernelNodeWriter.getInstance().flush(timeoutMillis);
+    }
+
+    /**
+     * Applies all queued node writes without blocking; the callback runs on
+     * the writer thread once they are done.
+     */
+    public static void flush(Runnable callback) {
+        KernelNodeWriter.getInstance().flush(callback);
+    }
+
     /**
      * Do we have touch control at all?
      */
     public static boolean hasTouchscreenGestures() {
-        return new File(GESTURE_CAMERA).exists()
-                && new File(GESTURE_FLASHLIGHT).exists()
-                && new File(GESTURE_MEDIA).exists();
+        return getCapabilities().hasTouchscreenGestures();
     }
 
     public static boolean hasSlider() {
-        return new File(KEYCODE_SLIDER_TOP).exists() &&
-            new File(KEYCODE_SLIDER_MIDDLE).exists() &&
-            new File(KEYCODE_SLIDER_BOTTOM).exists();
+        return getCapabilities().hasSlider();
     }
 
 }
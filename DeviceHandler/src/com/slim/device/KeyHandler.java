@@ -17,43 +17,113 @@
 package com.slim.device;
 
 import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.KeyguardManager;
 import android.app.NotificationManager;
+import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.media.AudioManager;
+import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
+import android.os.VibrationEffect;
 import android.os.Vibrator;
+import android.provider.MediaStore;
 import android.provider.Settings;
+import android.service.media.CameraPrewarmService;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.KeyEvent;
+import android.view.WindowManagerGlobal;
 
 import android.service.notification.ZenModeConfig;
 
 import com.slim.device.settings.ScreenOffGesture;
+import com.slim.device.util.LatencyHistogram;
 
+import com.android.internal.app.ResolverActivity;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.DeviceKeyHandler;
-import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.gzosp.ActionConstants;
 import com.android.internal.util.gzosp.Action;
 
-import java.util.HashSet;
+import java.net.URISyntaxException;
+import java.util.Arrays;
 
 public class KeyHandler implements DeviceKeyHandler {
 
     private static final String TAG = KeyHandler.class.getSimpleName();
     private static final int GESTURE_REQUEST = 1;
+    private static final int SLIDER_REQUEST = 2;
+    private static final int SPECULATIVE_WAKE = 3;
+    private static final int SPECULATIVE_WAKE_ROLLBACK = 4;
+    private static final int CAMERA_PREWARM = 5;
+    private static final int CAMERA_PREWARM_CANCEL = 6;
+    private static final int PROXIMITY_REQUEST = 7;
+
+    // Upper bound for keeping the camera warm when no launch follows
+    private static final int CAMERA_PREWARM_TIMEOUT = 2000;
+
+    // Time the slider has to rest in one position before its mode is applied
+    private static final String PROP_SLIDER_SETTLE_WINDOW = "persist.sys.slider_settle_ms";
+    private static final int SLIDER_DEFAULT_SETTLE_WINDOW = 80;
+    private static final int MODE_UNCHANGED = -1;
+    // Current mode not known yet, any requested mode gets applied
+    private static final int MODE_UNKNOWN = -2;
+
+    private static final long HAPTIC_DURATION = 50;
+    private static final long HAPTIC_PAUSE = 80;
+    // Gesture patterns are built from short and long ticks
+    private static final long HAPTIC_SHORT = 20;
+    private static final long HAPTIC_LONG = 100;
+    private static final int PROXIMITY_IDLE_TIMEOUT = 2000;
+
+    // Everything but the scancode lookup runs on our own thread, off the input pipeline
+    private static final int EVENT_THREAD_PRIORITY = Process.THREAD_PRIORITY_FOREGROUND;
+
+    // Proximity decision window, sized from the measured first-sample latency
+    private static final int PROXIMITY_DEFAULT_WINDOW = 200;
+    private static final int PROXIMITY_MIN_WINDOW = 50;
+    private static final int PROXIMITY_MAX_WINDOW = 400;
+    private static final int PROXIMITY_WINDOW_SLACK = 30;
+    private static final int PROXIMITY_LATENCY_SAMPLES = 16;
+    private static final int PROXIMITY_LATENCY_PERCENTILE = 90;
+
+    // How long the proximity sensor has to stay covered before the gestures get disarmed
+    private static final int POCKET_DISARM_DELAY = 2000;
+    // Upper bound for keeping the device awake while the app writes gesture nodes
+    private static final long NODE_WRITE_TIMEOUT = 2000;
 
     public static final String SETTING_NOTIF_SLIDER_UP =
             "device_oppo_common_notification_slider_up1";
@@ -102,14 +172,76 @@ public class KeyHandler implements DeviceKeyHandler {
         MODE_SILENT,
     };
 
-    private static final HashSet<Integer> sSupportedSliderModes = new HashSet<>();
+    // Dense dispatch table over every scancode we may consume, indexed by
+    // (scanCode - SCANCODE_MIN). A zero entry passes the key through, any
+    // other value is the gesture or slider mode to run for that scancode.
+    private static final int SCANCODE_MIN = GESTURE_CIRCLE_SCANCODE;
+    private static final int SCANCODE_MAX = MODE_SILENT;
+    private static final int KEY_PASS_THROUGH = 0;
+
+    private static final int[] sBaseKeyTable = new int[SCANCODE_MAX - SCANCODE_MIN + 1];
     static {
-        sSupportedSliderModes.add(SLIDER_TOP);
-        sSupportedSliderModes.add(SLIDER_MIDDLE);
-        sSupportedSliderModes.add(SLIDER_BOTTOM);
+        for (int scanCode : sSupportedGestures) {
+            sBaseKeyTable[scanCode - SCANCODE_MIN] = scanCode;
+        }
     }
 
+    // Gesture preference keys and their defaults, indexed by (scanCode - GESTURE_CIRCLE_SCANCODE)
+    private static final String[] sGesturePrefKeys = new String[]{
+        ScreenOffGesture.PREF_GESTURE_CIRCLE,
+        ScreenOffGesture.PREF_GESTURE_DOUBLE_SWIPE,
+        ScreenOffGesture.PREF_GESTURE_ARROW_DOWN,
+        ScreenOffGesture.PREF_GESTURE_ARROW_LEFT,
+        ScreenOffGesture.PREF_GESTURE_ARROW_RIGHT,
+        ScreenOffGesture.PREF_GESTURE_ARROW_UP,
+    };
+
+    // Observed slider settings and their defaults
+    private static final int SLIDER_SETTING_UP = 0;
+    private static final int SLIDER_SETTING_MIDDLE = 1;
+    private static final int SLIDER_SETTING_BOTTOM = 2;
+    private static final int SLIDER_SETTING_HAPTIC_FEEDBACK = 3;
+    private static final String[] sSliderSettings = new String[]{
+        SETTING_NOTIF_SLIDER_UP,
+        SETTING_NOTIF_SLIDER_MIDDLE,
+        SETTING_NOTIF_SLIDER_BOTTOM,
+        SETTING_NOTIF_SLIDER_HAPTIC_FEEDBACK,
+    };
+    private static final int[] sSliderSettingDefaults = new int[]{
+        SLIDER_TOP,
+        SLIDER_MIDDLE,
+        SLIDER_BOTTOM,
+        1,
+    };
+
+    private static final String[] sGestureDefaultActions = new String[]{
+        ActionConstants.ACTION_CAMERA,
+        ActionConstants.ACTION_MEDIA_PLAY_PAUSE,
+        ActionConstants.ACTION_VIB_SILENT,
+        ActionConstants.ACTION_MEDIA_PREVIOUS,
+        ActionConstants.ACTION_MEDIA_NEXT,
+        ActionConstants.ACTION_TORCH,
+    };
+
+    // Gesture latency, measured from the kernel event time
+    public static final String ACTION_DUMP_STATS = "com.slim.device.action.DUMP_KEYHANDLER_STATS";
+
+    private static final int STAGE_ENQUEUE = 0;
+    private static final int STAGE_SENSOR = 1;
+    private static final int STAGE_WAKE = 2;
+    private static final int STAGE_DISPATCH = 3;
+    private static final String[] sLatencyStageNames = new String[]{
+        "enqueue", "sensor", "wake", "dispatch",
+    };
+
+    // One row per gesture (scanCode - GESTURE_CIRCLE_SCANCODE) followed by one per slider mode
+    private static final String[] sLatencyRowNames = new String[]{
+        "circle", "swipe_down", "arrow_down", "arrow_left", "arrow_right", "arrow_up",
+        "total_silence", "alarms_only", "priority_only", "none", "vibrate", "ring", "silent",
+    };
+
     private final Context mContext;
+    private final Clock mClock;
     private final AudioManager mAudioManager;
     private final PowerManager mPowerManager;
     private final NotificationManager mNotificationManager;
@@ -117,16 +249,98 @@ public class KeyHandler implements DeviceKeyHandler {
     private EventHandler mEventHandler;
     private SensorManager mSensorManager;
     private Sensor mProximitySensor;
-    private Vibrator mVibrator;
+    private final Vibrator mVibrator;
+    // A pattern of its own per gesture, same indexing as sGesturePrefKeys
+    private final Haptic[] mGestureHaptics = new Haptic[]{
+        // circle
+        new Haptic(VibrationEffect.createOneShot(HAPTIC_LONG,
+                VibrationEffect.DEFAULT_AMPLITUDE)),
+        // double swipe
+        new Haptic(VibrationEffect.createWaveform(
+                new long[] { 0, HAPTIC_SHORT, HAPTIC_PAUSE, HAPTIC_SHORT }, -1)),
+        // arrow down
+        new Haptic(VibrationEffect.createWaveform(
+                new long[] { 0, HAPTIC_LONG, HAPTIC_PAUSE, HAPTIC_SHORT }, -1)),
+        // arrow left
+        new Haptic(VibrationEffect.createWaveform(
+                new long[] { 0, HAPTIC_SHORT, HAPTIC_PAUSE, HAPTIC_SHORT,
+                        HAPTIC_PAUSE, HAPTIC_LONG }, -1)),
+        // arrow right
+        new Haptic(VibrationEffect.createWaveform(
+                new long[] { 0, HAPTIC_LONG, HAPTIC_PAUSE, HAPTIC_SHORT,
+                        HAPTIC_PAUSE, HAPTIC_SHORT }, -1)),
+        // arrow up
+        new Haptic(VibrationEffect.createWaveform(
+                new long[] { 0, HAPTIC_SHORT, HAPTIC_PAUSE, HAPTIC_LONG }, -1)),
+    };
+    // One tick for the top slider position, more ticks further down
+    private final Haptic mSliderTopHaptic = new Haptic(VibrationEffect.createOneShot(
+            HAPTIC_DURATION, VibrationEffect.DEFAULT_AMPLITUDE));
+    private final Haptic mSliderMiddleHaptic = new Haptic(VibrationEffect.createWaveform(
+            new long[] { 0, HAPTIC_DURATION, HAPTIC_PAUSE, HAPTIC_DURATION }, -1));
+    private final Haptic mSliderBottomHaptic = new Haptic(VibrationEffect.createWaveform(
+            new long[] { 0, HAPTIC_DURATION, HAPTIC_PAUSE, HAPTIC_DURATION,
+                    HAPTIC_PAUSE, HAPTIC_DURATION }, -1));
     WakeLock mProximityWakeLock;
+    private ProximitySession mProximitySession;
+    private PocketGuard mPocketGuard;
+    private GestureNodes mGestureNodes;
+    private CameraPrewarm mCameraPrewarm;
+    private TorchControl mTorchControl;
+    private RingerZenControl mRingerZenControl;
+
+    // Compiled gesture actions, same indexing as sGesturePrefKeys. Loaded lazily
+    // and reloaded only when ScreenOffGesture reports a change.
+    private volatile GestureAction[] mGestureActions;
+    private volatile boolean mGesturesEnabled = true;
+    private volatile boolean mSpeculativeWakeEnabled;
+    private volatile boolean mPocketDisarmEnabled;
+    // Only touched on the event thread
+    private boolean mSpeculativelyWoken;
 
-    private int mSliderUpAction;
-    private int mSliderMiddleAction;
-    private int mSliderBottomAction;
+    // Replaced as a whole whenever a slider setting changes, never modified in place
+    private volatile SliderConfig mSliderConfig;
+
+    private final LatencyHistogram[][] mLatency =
+            new LatencyHistogram[sLatencyRowNames.length][sLatencyStageNames.length];
+
+    private final int mSliderSettleWindow;
+    private volatile int mSliderBouncesSuppressed;
+
+    // Written from a single thread each, read when dumping
+    private volatile int mEventsConsumed;
+    private volatile int mGesturesDispatched;
+    private volatile int mSliderModesApplied;
+
+    /**
+     * Time source for everything KeyHandler measures or schedules itself,
+     * i.e. latencies and all delayed messages on the event looper.
+     */
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
 
     public KeyHandler(Context context) {
+        this(context, startEventThread(), SYSTEM_CLOCK);
+    }
+
+    /**
+     * All delayed work (proximity window, slider settle window, idle and
+     * prewarm timeouts) is scheduled on the given looper at times taken from
+     * the given clock, as are all latencies, so a manually driven looper and
+     * a virtual clock make the timing behaviour reproducible.
+     */
+    KeyHandler(Context context, Looper looper, Clock clock) {
         mContext = context;
-        mEventHandler = new EventHandler();
+        mClock = clock;
+        mEventHandler = new EventHandler(looper);
         mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         mNotificationManager
@@ -135,6 +349,20 @@ public class KeyHandler implements DeviceKeyHandler {
         mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
         mProximityWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                 "ProximityWakeLock");
+        mProximitySession = new ProximitySession();
+        mPocketGuard = new PocketGuard();
+        mGestureNodes = new GestureNodes();
+        Vibrator vibrator = (Vibrator) mContext.getSystemService(Context.VIBRATOR_SERVICE);
+        mVibrator = vibrator != null && vibrator.hasVibrator() ? vibrator : null;
+        mCameraPrewarm = new CameraPrewarm();
+        mTorchControl = new TorchControl();
+        mSliderSettleWindow = SystemProperties.getInt(PROP_SLIDER_SETTLE_WINDOW,
+                SLIDER_DEFAULT_SETTLE_WINDOW);
+        for (LatencyHistogram[] row : mLatency) {
+            for (int stage = 0; stage < row.length; stage++) {
+                row[stage] = new LatencyHistogram();
+            }
+        }
 
         try {
             mGestureContext = mContext.createPackageContext(
@@ -142,114 +370,560 @@ public class KeyHandler implements DeviceKeyHandler {
         } catch (NameNotFoundException e) {
         }
 
-        new SettingsObserver(new Handler()).observe();
+        new SettingsObserver(mEventHandler).observe();
+        mRingerZenControl = new RingerZenControl(mEventHandler);
+        mRingerZenControl.observe();
+
+        mContext.registerReceiverAsUser(mGestureSettingsReceiver, UserHandle.ALL,
+                new IntentFilter(ScreenOffGesture.ACTION_GESTURE_SETTINGS_CHANGED),
+                ScreenOffGesture.PERMISSION_GESTURE_SETTINGS, mEventHandler);
+        mContext.registerReceiverAsUser(mDumpStatsReceiver, UserHandle.ALL,
+                new IntentFilter(ACTION_DUMP_STATS),
+                android.Manifest.permission.DUMP, mEventHandler);
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+        mContext.registerReceiver(mScreenStateReceiver, screenFilter, null, mEventHandler);
+    }
+
+    private static Looper startEventThread() {
+        HandlerThread thread = new HandlerThread(TAG, EVENT_THREAD_PRIORITY);
+        thread.start();
+        return thread.getLooper();
     }
 
+    private final BroadcastReceiver mGestureSettingsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            loadGestureSettings();
+        }
+    };
+
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mGestureContext == null) {
+                return;
+            }
+            if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                mPocketGuard.stop();
+                return;
+            }
+            // The camera service is up by now, unlike while we are constructed
+            mTorchControl.prepare();
+            if (mGestureActions == null) {
+                loadGestureSettings();
+            }
+            // Gestures only matter while the screen is off, so that's the moment to
+            // make sure the kernel didn't reset the gesture nodes meanwhile.
+            // Disarmed nodes are left alone, the guard re-arms them itself.
+            if (!mPocketGuard.isPocketed()) {
+                mGestureNodes.apply(true, true);
+            }
+            if (mPocketDisarmEnabled) {
+                mPocketGuard.start();
+            }
+        }
+    };
+
+    // adb shell am broadcast -a com.slim.device.action.DUMP_KEYHANDLER_STATS
+    private final BroadcastReceiver mDumpStatsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            dumpStats();
+        }
+    };
+
     private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
+        // The *Delayed() variants of Handler go by SystemClock, these by mClock
+
+        boolean sendMessageAfter(Message msg, long delayMillis) {
+            return sendMessageAtTime(msg, mClock.uptimeMillis() + delayMillis);
+        }
+
+        boolean sendEmptyMessageAfter(int what, long delayMillis) {
+            return sendEmptyMessageAtTime(what, mClock.uptimeMillis() + delayMillis);
+        }
+
+        boolean postAfter(Runnable r, long delayMillis) {
+            return postAtTime(r, mClock.uptimeMillis() + delayMillis);
+        }
+
         @Override
         public void handleMessage(Message msg) {
-            int scanCode;
-            if (msg.obj instanceof KeyEvent) {
-                KeyEvent event = (KeyEvent) msg.obj;
-                scanCode = event.getScanCode();
-            } else if (msg.obj instanceof Integer) {
-                scanCode = (Integer) msg.obj;
-            } else {
+            final int scanCode = msg.arg1;
+            switch (msg.what) {
+            case SPECULATIVE_WAKE:
+                handleSpeculativeWake(scanCode, (KeyEvent) msg.obj);
+                return;
+            case SPECULATIVE_WAKE_ROLLBACK:
+                if (mSpeculativelyWoken) {
+                    mSpeculativelyWoken = false;
+                    mPowerManager.goToSleep(SystemClock.uptimeMillis());
+                }
+                return;
+            case CAMERA_PREWARM:
+                if (getGestureAction(scanCode).kind == GestureAction.Kind.CAMERA) {
+                    mCameraPrewarm.start();
+                }
+                return;
+            case CAMERA_PREWARM_CANCEL:
+                mCameraPrewarm.finish(false);
+                return;
+            case PROXIMITY_REQUEST:
+                mProximitySession.request((KeyEvent) msg.obj);
                 return;
             }
-            String action = null;
+
+            final KeyEvent event = (KeyEvent) msg.obj;
+            GestureAction action = null;
             switch(scanCode) {
             case GESTURE_CIRCLE_SCANCODE:
-                action = getGestureSharedPreferences()
-                        .getString(ScreenOffGesture.PREF_GESTURE_CIRCLE,
-                        ActionConstants.ACTION_CAMERA);
-                        doHapticFeedback();
-                break;
             case GESTURE_SWIPE_DOWN_SCANCODE:
-                action = getGestureSharedPreferences()
-                        .getString(ScreenOffGesture.PREF_GESTURE_DOUBLE_SWIPE,
-                        ActionConstants.ACTION_MEDIA_PLAY_PAUSE);
-                        doHapticFeedback();
-                break;
             case GESTURE_V_SCANCODE:
-                action = getGestureSharedPreferences()
-                        .getString(ScreenOffGesture.PREF_GESTURE_ARROW_DOWN,
-                        ActionConstants.ACTION_VIB_SILENT);
-                        doHapticFeedback();
-                break;
             case GESTURE_V_UP_SCANCODE:
-                action = getGestureSharedPreferences()
-                        .getString(ScreenOffGesture.PREF_GESTURE_ARROW_UP,
-                        ActionConstants.ACTION_TORCH);
-                        doHapticFeedback();
-                break;
             case GESTURE_LTR_SCANCODE:
-                action = getGestureSharedPreferences()
-                        .getString(ScreenOffGesture.PREF_GESTURE_ARROW_LEFT,
-                        ActionConstants.ACTION_MEDIA_PREVIOUS);
-                        doHapticFeedback();
-                break;
             case GESTURE_GTR_SCANCODE:
-                action = getGestureSharedPreferences()
-                        .getString(ScreenOffGesture.PREF_GESTURE_ARROW_RIGHT,
-                        ActionConstants.ACTION_MEDIA_NEXT);
-                        doHapticFeedback();
+                action = getGestureAction(scanCode);
+                doHapticFeedback(mGestureHaptics[scanCode - GESTURE_CIRCLE_SCANCODE]);
                 break;
             case MODE_TOTAL_SILENCE:
-                setZenMode(Settings.Global.ZEN_MODE_NO_INTERRUPTIONS);
+                applySliderMode(Settings.Global.ZEN_MODE_NO_INTERRUPTIONS, MODE_UNCHANGED,
+                        event);
                 break;
             case MODE_ALARMS_ONLY:
-                setZenMode(Settings.Global.ZEN_MODE_ALARMS);
+                applySliderMode(Settings.Global.ZEN_MODE_ALARMS, MODE_UNCHANGED, event);
                 break;
             case MODE_PRIORITY_ONLY:
-                setRingerModeInternal(AudioManager.RINGER_MODE_NORMAL);
-                setZenMode(Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS);
+                applySliderMode(Settings.Global.ZEN_MODE_IMPORTANT_INTERRUPTIONS,
+                        AudioManager.RINGER_MODE_NORMAL, event);
                 break;
             case MODE_NONE:
-                setZenMode(Settings.Global.ZEN_MODE_OFF);
-                setRingerModeInternal(AudioManager.RINGER_MODE_NORMAL);
+                applySliderMode(Settings.Global.ZEN_MODE_OFF, AudioManager.RINGER_MODE_NORMAL,
+                        event);
                 break;
             case MODE_VIBRATE:
-                setRingerModeInternal(AudioManager.RINGER_MODE_VIBRATE);
+                applySliderMode(MODE_UNCHANGED, AudioManager.RINGER_MODE_VIBRATE, event);
                 break;
             case MODE_RING:
-                setRingerModeInternal(AudioManager.RINGER_MODE_NORMAL);
+                applySliderMode(MODE_UNCHANGED, AudioManager.RINGER_MODE_NORMAL, event);
                 break;
             case MODE_SILENT:
-                setRingerModeInternal(AudioManager.RINGER_MODE_SILENT);
+                applySliderMode(MODE_UNCHANGED, AudioManager.RINGER_MODE_SILENT, event);
                 break;
             }
 
-            if (action == null || action != null && action.equals(ActionConstants.ACTION_NULL)) {
+            if (action == null || action.kind == GestureAction.Kind.NONE) {
+                if (scanCode >= MODE_TOTAL_SILENCE) {
+                    mSliderModesApplied++;
+                }
+                mCameraPrewarm.finish(false);
+                recordLatency(scanCode, STAGE_DISPATCH, event);
+                return;
+            }
+            mGesturesDispatched++;
+            launchGesture(scanCode, action, event);
+        }
+    }
+
+    /**
+     * Runs the action of a gesture that passed the proximity check. Called
+     * on the event thread, overridden by tests that only look at timing.
+     */
+    void launchGesture(int scanCode, GestureAction action, KeyEvent event) {
+        if (action.kind == GestureAction.Kind.TORCH && mTorchControl.toggle()) {
+            recordLatency(scanCode, STAGE_DISPATCH, event);
+            return;
+        }
+        if (mSpeculativelyWoken) {
+            // Already woken up while the proximity sensor was checked
+            mSpeculativelyWoken = false;
+        } else if (action.needsWake) {
+            Action.processAction(mContext, ActionConstants.ACTION_WAKE_DEVICE, false);
+            recordLatency(scanCode, STAGE_WAKE, event);
+        }
+        if (action.kind == GestureAction.Kind.INTENT) {
+            startGestureIntent(action);
+        } else {
+            Action.processAction(mContext, action.action, false);
+        }
+        mCameraPrewarm.finish(action.kind == GestureAction.Kind.CAMERA);
+        recordLatency(scanCode, STAGE_DISPATCH, event);
+    }
+
+    /**
+     * A configured gesture action, compiled once when the gesture settings
+     * are loaded. Custom app and shortcut actions keep their parsed Intent
+     * with the target component already resolved.
+     */
+    static final class GestureAction {
+        enum Kind {
+            NONE,
+            TORCH,
+            CAMERA,
+            SYSTEM,
+            INTENT,
+        }
+
+        final Kind kind;
+        final String action;
+        final Intent intent;
+        final boolean needsWake;
+
+        private GestureAction(Kind kind, String action, Intent intent) {
+            this.kind = kind;
+            this.action = action;
+            this.intent = intent;
+            this.needsWake = kind == Kind.CAMERA || kind == Kind.INTENT
+                    || (kind == Kind.SYSTEM && !action.startsWith("**"));
+        }
+
+        static GestureAction compile(Context context, String action, int userId) {
+            if (action == null || action.equals(ActionConstants.ACTION_NULL)) {
+                return new GestureAction(Kind.NONE, action, null);
+            } else if (action.equals(ActionConstants.ACTION_TORCH)) {
+                return new GestureAction(Kind.TORCH, action, null);
+            } else if (action.equals(ActionConstants.ACTION_CAMERA)) {
+                return new GestureAction(Kind.CAMERA, action, null);
+            } else if (action.startsWith("**")) {
+                return new GestureAction(Kind.SYSTEM, action, null);
+            }
+
+            Intent intent;
+            try {
+                intent = Intent.parseUri(action, 0);
+            } catch (URISyntaxException e) {
+                // Leave it to Action to deal with
+                return new GestureAction(Kind.SYSTEM, action, null);
+            }
+            if (intent.getComponent() == null) {
+                ResolveInfo resolved = context.getPackageManager().resolveActivityAsUser(
+                        intent, PackageManager.MATCH_DEFAULT_ONLY, userId);
+                // Several candidates resolve to the chooser, which must not be pinned
+                if (resolved != null && resolved.activityInfo != null
+                        && !ResolverActivity.class.getName().equals(resolved.activityInfo.name)) {
+                    intent.setComponent(new ComponentName(
+                            resolved.activityInfo.packageName, resolved.activityInfo.name));
+                }
+            }
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP
+                    | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            return new GestureAction(Kind.INTENT, action, intent);
+        }
+    }
+
+    private void startGestureIntent(GestureAction action) {
+        try {
+            KeyguardManager keyguardManager = mContext.getSystemService(KeyguardManager.class);
+            if (keyguardManager != null && keyguardManager.isKeyguardLocked()) {
+                WindowManagerGlobal.getWindowManagerService().dismissKeyguard(null, null);
+            }
+            mContext.startActivityAsUser(action.intent, UserHandle.CURRENT);
+        } catch (RemoteException | ActivityNotFoundException e) {
+            // Target went away since the action was compiled, let Action sort it out
+            Log.w(TAG, "Unable to start " + action.intent, e);
+            Action.processAction(mContext, action.action, false);
+        }
+    }
+
+    /**
+     * Toggles the flashlight directly through CameraManager. The flash capable
+     * camera is looked up once and the torch state is tracked through a
+     * TorchCallback, so a toggle is a single setTorchMode call.
+     */
+    private class TorchControl extends CameraManager.TorchCallback {
+        private CameraManager mCameraManager;
+        private String mCameraId;
+        private boolean mTorchEnabled;
+        private boolean mTorchAvailable;
+        // Set by the first callback, until then mTorchEnabled is just a guess
+        private boolean mStateKnown;
+
+        /**
+         * Registers for torch updates ahead of the first gesture, so the
+         * first toggle already knows whether e.g. Quick Settings left the
+         * torch on.
+         */
+        void prepare() {
+            if (mCameraManager == null) {
+                init();
+            }
+        }
+
+        /**
+         * @return false if the torch can't be driven directly right now
+         */
+        boolean toggle() {
+            if (mCameraManager == null && !init()) {
+                return false;
+            }
+            if (mCameraId == null || !mTorchAvailable || !mStateKnown) {
+                return false;
+            }
+            try {
+                mCameraManager.setTorchMode(mCameraId, !mTorchEnabled);
+            } catch (CameraAccessException | IllegalArgumentException e) {
+                Log.w(TAG, "Unable to toggle torch", e);
+                return false;
+            }
+            // Flip right away so a second gesture before the callback still toggles back
+            mTorchEnabled = !mTorchEnabled;
+            return true;
+        }
+
+        private boolean init() {
+            CameraManager cameraManager = mContext.getSystemService(CameraManager.class);
+            if (cameraManager == null) {
+                return false;
+            }
+            try {
+                for (String id : cameraManager.getCameraIdList()) {
+                    CameraCharacteristics characteristics =
+                            cameraManager.getCameraCharacteristics(id);
+                    Boolean flashAvailable =
+                            characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                    Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                    if (flashAvailable != null && flashAvailable
+                            && lensFacing != null
+                            && lensFacing == CameraCharacteristics.LENS_FACING_BACK) {
+                        mCameraId = id;
+                        break;
+                    }
+                }
+            } catch (CameraAccessException e) {
+                Log.w(TAG, "Unable to look up flash camera", e);
+                return false;
+            }
+            mCameraManager = cameraManager;
+            if (mCameraId != null) {
+                // Available until the callback tells otherwise
+                mTorchAvailable = true;
+                mCameraManager.registerTorchCallback(this, mEventHandler);
+            }
+            return true;
+        }
+
+        @Override
+        public void onTorchModeChanged(String cameraId, boolean enabled) {
+            if (cameraId.equals(mCameraId)) {
+                mTorchEnabled = enabled;
+                mTorchAvailable = true;
+                mStateKnown = true;
+            }
+        }
+
+        @Override
+        public void onTorchModeUnavailable(String cameraId) {
+            if (cameraId.equals(mCameraId)) {
+                mTorchEnabled = false;
+                mTorchAvailable = false;
+                mStateKnown = true;
+            }
+        }
+    }
+
+    /**
+     * Binds the camera app's prewarm service (the same hook the keyguard
+     * camera affordance uses) on the DOWN edge of the circle gesture, so the
+     * camera process and service are starting while we wait for the UP edge
+     * and the proximity verdict.
+     */
+    private class CameraPrewarm implements ServiceConnection {
+        private boolean mBound;
+        private Messenger mMessenger;
+
+        void start() {
+            if (mBound) {
+                return;
+            }
+            ActivityInfo targetInfo = getCameraActivityInfo();
+            if (targetInfo == null || targetInfo.metaData == null) {
+                return;
+            }
+            String clazz = targetInfo.metaData.getString(
+                    MediaStore.META_DATA_STILL_IMAGE_CAMERA_PREWARM_SERVICE);
+            if (clazz == null) {
                 return;
             }
-            if (action.equals(ActionConstants.ACTION_CAMERA)
-                    || !action.startsWith("**")) {
-                Action.processAction(mContext, ActionConstants.ACTION_WAKE_DEVICE, false);
+            Intent serviceIntent = new Intent(CameraPrewarmService.ACTION_PREWARM);
+            serviceIntent.setClassName(targetInfo.packageName, clazz);
+            try {
+                mBound = mContext.bindServiceAsUser(serviceIntent, this,
+                        Context.BIND_AUTO_CREATE | Context.BIND_FOREGROUND_SERVICE,
+                        UserHandle.CURRENT);
+            } catch (SecurityException e) {
+                Log.w(TAG, "Unable to bind to camera prewarm service " + clazz, e);
             }
-            Action.processAction(mContext, action, false);
+            if (mBound) {
+                mEventHandler.sendEmptyMessageAfter(CAMERA_PREWARM_CANCEL,
+                        CAMERA_PREWARM_TIMEOUT);
+            }
+        }
+
+        /**
+         * @param launched whether the camera was just launched into the warmed up process
+         */
+        void finish(boolean launched) {
+            if (!mBound) {
+                return;
+            }
+            mEventHandler.removeMessages(CAMERA_PREWARM_CANCEL);
+            if (launched && mMessenger != null) {
+                try {
+                    mMessenger.send(Message.obtain(null, CameraPrewarmService.MSG_CAMERA_FIRED));
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Error sending camera fired message", e);
+                }
+            }
+            mContext.unbindService(this);
+            mMessenger = null;
+            mBound = false;
+        }
+
+        boolean isBound() {
+            return mBound;
+        }
+
+        private ActivityInfo getCameraActivityInfo() {
+            KeyguardManager keyguardManager = mContext.getSystemService(KeyguardManager.class);
+            Intent intent = new Intent(keyguardManager != null
+                    && keyguardManager.isKeyguardLocked()
+                    && keyguardManager.isKeyguardSecure()
+                    ? MediaStore.INTENT_ACTION_STILL_IMAGE_CAMERA_SECURE
+                    : MediaStore.INTENT_ACTION_STILL_IMAGE_CAMERA);
+            ResolveInfo resolved = mContext.getPackageManager().resolveActivityAsUser(intent,
+                    PackageManager.MATCH_DEFAULT_ONLY | PackageManager.GET_META_DATA,
+                    ActivityManager.getCurrentUser());
+            return resolved != null ? resolved.activityInfo : null;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mMessenger = new Messenger(service);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mMessenger = null;
         }
     }
 
-    private void setZenMode(int mode) {
-        mNotificationManager.setZenMode(mode, null, TAG);
-        if (mVibrator != null) {
-            mVibrator.vibrate(50);
+    private void applySliderMode(int zenMode, int ringerMode, KeyEvent event) {
+        if (mRingerZenControl.apply(zenMode, ringerMode)) {
+            switch (event.getScanCode()) {
+            case SLIDER_MIDDLE:
+                doHapticFeedback(mSliderMiddleHaptic);
+                break;
+            case SLIDER_BOTTOM:
+                doHapticFeedback(mSliderBottomHaptic);
+                break;
+            default:
+                doHapticFeedback(mSliderTopHaptic);
+                break;
+            }
         }
     }
 
-    private void setRingerModeInternal(int mode) {
-        mAudioManager.setRingerModeInternal(mode);
-        if (mVibrator != null) {
-            mVibrator.vibrate(50);
+    /**
+     * Tracks the current zen and internal ringer mode so that slider
+     * positions only issue the transitions that actually change something.
+     */
+    private class RingerZenControl extends ContentObserver {
+        private final Uri mZenModeUri = Settings.Global.getUriFor(Settings.Global.ZEN_MODE);
+        // Not queried up front, the notification and audio services may not be
+        // up yet while the window manager constructs us
+        private int mZenMode = MODE_UNKNOWN;
+        private int mRingerMode = MODE_UNKNOWN;
+
+        RingerZenControl(Handler handler) {
+            super(handler);
+        }
+
+        void observe() {
+            mContext.getContentResolver().registerContentObserver(mZenModeUri, false, this);
+            mContext.registerReceiver(mRingerModeReceiver,
+                    new IntentFilter(AudioManager.INTERNAL_RINGER_MODE_CHANGED_ACTION),
+                    null, mEventHandler);
+        }
+
+        /**
+         * Moves to the given modes, MODE_UNCHANGED leaves one alone. Entering
+         * zen sets the ringer first, leaving zen clears it first.
+         *
+         * @return whether any mode was changed
+         */
+        boolean apply(int zenMode, int ringerMode) {
+            boolean changed = false;
+            if (zenMode == Settings.Global.ZEN_MODE_OFF) {
+                changed |= setZenMode(zenMode);
+                changed |= setRingerModeInternal(ringerMode);
+            } else {
+                changed |= setRingerModeInternal(ringerMode);
+                changed |= setZenMode(zenMode);
+            }
+            return changed;
+        }
+
+        private boolean setZenMode(int mode) {
+            if (mode == MODE_UNCHANGED || mode == mZenMode) {
+                return false;
+            }
+            mNotificationManager.setZenMode(mode, null, TAG);
+            mZenMode = mode;
+            // ZenModeHelper moves the internal ringer along with zen, and the
+            // broadcast telling us so may arrive after the next slider move
+            mRingerMode = MODE_UNKNOWN;
+            return true;
+        }
+
+        private boolean setRingerModeInternal(int mode) {
+            if (mode == MODE_UNCHANGED || mode == mRingerMode) {
+                return false;
+            }
+            mAudioManager.setRingerModeInternal(mode);
+            mRingerMode = mode;
+            return true;
         }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mZenMode = Settings.Global.getInt(mContext.getContentResolver(),
+                    Settings.Global.ZEN_MODE, Settings.Global.ZEN_MODE_OFF);
+        }
+
+        private final BroadcastReceiver mRingerModeReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mRingerMode = intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE, mRingerMode);
+            }
+        };
     }
 
-    private void doHapticFeedback() {
-        if (mVibrator == null) {
+    private void doHapticFeedback(Haptic haptic) {
+        if (mVibrator == null || !mSliderConfig.hapticFeedback) {
             return;
         }
-            mVibrator.vibrate(50);
+        BackgroundThread.getHandler().post(haptic);
+    }
+
+    /**
+     * A pre-built vibration, played from the background thread so the
+     * vibrator binder call never delays the action it accompanies.
+     */
+    private final class Haptic implements Runnable {
+        private final VibrationEffect mEffect;
+
+        Haptic(VibrationEffect effect) {
+            mEffect = effect;
+        }
+
+        @Override
+        public void run() {
+            mVibrator.vibrate(mEffect);
+        }
     }
 
     private SharedPreferences getGestureSharedPreferences() {
@@ -258,85 +932,517 @@ public class KeyHandler implements DeviceKeyHandler {
                 Context.MODE_PRIVATE | Context.MODE_MULTI_PROCESS);
     }
 
+    private GestureAction getGestureAction(int scanCode) {
+        GestureAction[] actions = mGestureActions;
+        if (actions == null) {
+            actions = loadGestureSettings();
+        }
+        return actions[scanCode - GESTURE_CIRCLE_SCANCODE];
+    }
+
+    private GestureAction[] loadGestureSettings() {
+        SharedPreferences prefs = mGestureContext != null ? getGestureSharedPreferences() : null;
+        GestureAction[] actions = new GestureAction[sGesturePrefKeys.length];
+        for (int i = 0; i < actions.length; i++) {
+            String action = prefs != null
+                    ? prefs.getString(sGesturePrefKeys[i], sGestureDefaultActions[i])
+                    : sGestureDefaultActions[i];
+            actions[i] = GestureAction.compile(mContext, action,
+                    ActivityManager.getCurrentUser());
+        }
+        mGesturesEnabled = prefs == null
+                || prefs.getBoolean(ScreenOffGesture.PREF_GESTURE_ENABLE, true);
+        mSpeculativeWakeEnabled = prefs != null && prefs.getBoolean(
+                ScreenOffGesture.PREF_GESTURE_SPECULATIVE_WAKE, false);
+        // Nothing to guard with gestures off, don't keep the sensor on for it
+        mPocketDisarmEnabled = prefs != null
+                && prefs.getBoolean(ScreenOffGesture.PREF_GESTURE_ENABLE, true)
+                && prefs.getBoolean(ScreenOffGesture.PREF_GESTURE_POCKET_DISARM, false);
+        mGestureActions = actions;
+        return actions;
+    }
+
+    /**
+     * Wakes the device while the proximity verdict for a gesture is still
+     * pending, so wake up and sensor latency overlap. Rolled back when the
+     * sensor reports the device is covered.
+     */
+    private void handleSpeculativeWake(int scanCode, KeyEvent event) {
+        if (!mEventHandler.hasMessages(GESTURE_REQUEST) || mPowerManager.isInteractive()) {
+            // Verdict already in, or nothing to wake up
+            return;
+        }
+        if (!getGestureAction(scanCode).needsWake) {
+            return;
+        }
+        Action.processAction(mContext, ActionConstants.ACTION_WAKE_DEVICE, false);
+        mSpeculativelyWoken = true;
+        recordLatency(scanCode, STAGE_WAKE, event);
+    }
+
     public KeyEvent handleKeyEvent(KeyEvent event) {
-        int scanCode = event.getScanCode();
-        boolean isSliderModeSupported = sSupportedSliderModes.contains(scanCode);
-        if (isSliderModeSupported) {
-            // Remap slider actions
-            if (scanCode == SLIDER_TOP) {
-                scanCode = mSliderUpAction;
-            } else if (scanCode == SLIDER_MIDDLE) {
-                scanCode = mSliderMiddleAction;
-            } else if (scanCode == SLIDER_BOTTOM) {
-                scanCode = mSliderBottomAction;
-            }
-        }
-        boolean isKeySupported = ArrayUtils.contains(sSupportedGestures, scanCode);
-        if (!isKeySupported) {
+        final int[] keyTable = mSliderConfig.keyTable;
+        final int index = event.getScanCode() - SCANCODE_MIN;
+        if (index < 0 || index >= keyTable.length) {
+            return event;
+        }
+        final int scanCode = keyTable[index];
+        if (scanCode == KEY_PASS_THROUGH) {
             return event;
         }
+        mEventsConsumed++;
         if (event.getAction() != KeyEvent.ACTION_UP) {
+            if (scanCode == GESTURE_CIRCLE_SCANCODE && event.getAction() == KeyEvent.ACTION_DOWN) {
+                mEventHandler.sendMessage(
+                        getMessageForScanCode(CAMERA_PREWARM, scanCode, event));
+            }
+            return null;
+        }
+
+        if (scanCode >= MODE_TOTAL_SILENCE) {
+            // Loose contact in the slider makes it bounce between positions:
+            // only apply the position it rests in for the settle window.
+            if (mEventHandler.hasMessages(SLIDER_REQUEST)) {
+                mEventHandler.removeMessages(SLIDER_REQUEST);
+                mSliderBouncesSuppressed++;
+            }
+            mEventHandler.sendMessageAfter(
+                    getMessageForScanCode(SLIDER_REQUEST, scanCode, event), mSliderSettleWindow);
+            recordLatency(scanCode, STAGE_ENQUEUE, event);
             return null;
         }
 
-        // In case we're too fast: possibly loose contact in hw button?
-        // -> discard previous, apply last update
+        // A newer gesture replaces one still waiting for its proximity verdict
         mEventHandler.removeMessages(GESTURE_REQUEST);
+        mEventHandler.removeMessages(PROXIMITY_REQUEST);
 
-        Message msg;
-        if (scanCode != event.getScanCode()) {
-            // Overwritten action
-            msg = getMessageForScanCode(scanCode);
-        } else {
-            msg = getMessageForKeyEvent(event);
-        }
-        if (scanCode < MODE_TOTAL_SILENCE && mProximitySensor != null) {
-            mEventHandler.sendMessageDelayed(msg, 200);
-            processEvent(event);
+        Message msg = getMessageForScanCode(GESTURE_REQUEST, scanCode, event);
+        if (mProximitySensor != null) {
+            mEventHandler.sendMessageAfter(msg, mProximitySession.getDecisionWindow());
+            mEventHandler.sendMessage(
+                    getMessageForScanCode(PROXIMITY_REQUEST, scanCode, event));
+            if (mSpeculativeWakeEnabled) {
+                mEventHandler.sendMessage(
+                        getMessageForScanCode(SPECULATIVE_WAKE, scanCode, event));
+            }
         } else {
             mEventHandler.sendMessage(msg);
         }
+        recordLatency(scanCode, STAGE_ENQUEUE, event);
         return null;
     }
 
-    private Message getMessageForKeyEvent(KeyEvent keyEvent) {
-        Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
+    /**
+     * @return number of slider positions discarded because the slider moved on
+     * before the settle window ran out
+     */
+    int getSliderBouncesSuppressed() {
+        return mSliderBouncesSuppressed;
+    }
+
+    int getSliderModesApplied() {
+        return mSliderModesApplied;
+    }
+
+    int getSliderSettleWindow() {
+        return mSliderSettleWindow;
+    }
+
+    private void recordLatency(int scanCode, int stage, KeyEvent event) {
+        final int row;
+        if (scanCode <= GESTURE_V_UP_SCANCODE) {
+            row = scanCode - GESTURE_CIRCLE_SCANCODE;
+        } else if (scanCode == MODE_SILENT) {
+            row = sLatencyRowNames.length - 1;
+        } else {
+            row = GESTURE_V_UP_SCANCODE - GESTURE_CIRCLE_SCANCODE + 1
+                    + scanCode - MODE_TOTAL_SILENCE;
+        }
+        mLatency[row][stage].record(mClock.uptimeMillis() - event.getEventTime());
+    }
+
+    private void dumpStats() {
+        Log.i(TAG, "Events consumed: " + mEventsConsumed + ", gestures dispatched: "
+                + mGesturesDispatched + ", slider modes applied: " + mSliderModesApplied);
+        // Anything but idle here long after the last gesture means something leaked
+        Log.i(TAG, "Proximity session: " + mProximitySession.getState()
+                + ", wakelock held: " + mProximityWakeLock.isHeld()
+                + ", camera prewarm bound: " + mCameraPrewarm.isBound());
+        Log.i(TAG, "Pocket guard: " + mPocketGuard.getState());
+        Log.i(TAG, "Proximity latency estimate: " + mProximitySession.getLatencyEstimate()
+                + "ms, decision window: " + mProximitySession.getDecisionWindow() + "ms");
+        Log.i(TAG, "Slider bounces suppressed: " + mSliderBouncesSuppressed);
+        Log.i(TAG, "Gesture nodes: " + mGestureNodes.getState());
+        for (int row = 0; row < mLatency.length; row++) {
+            for (int stage = 0; stage < mLatency[row].length; stage++) {
+                String summary = mLatency[row][stage].toString();
+                if (!summary.isEmpty()) {
+                    Log.i(TAG, sLatencyRowNames[row] + "/" + sLatencyStageNames[stage]
+                            + ": " + summary);
+                }
+            }
+        }
+    }
+
+    private Message getMessageForScanCode(int what, int scanCode, KeyEvent keyEvent) {
+        Message msg = mEventHandler.obtainMessage(what);
+        msg.arg1 = scanCode;
         msg.obj = keyEvent;
         return msg;
     }
 
-    private Message getMessageForScanCode(int scanCode) {
-        Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
-        msg.obj = new Integer(scanCode);
-        return msg;
+    /**
+     * Immutable snapshot of the slider settings along with the dispatch
+     * table built from them. Values are indexed like sSliderSettings.
+     */
+    private static final class SliderConfig {
+        final int[] values;
+        final boolean hapticFeedback;
+        final int[] keyTable;
+
+        SliderConfig(int[] values) {
+            this.values = values;
+            hapticFeedback = values[SLIDER_SETTING_HAPTIC_FEEDBACK] != 0;
+            keyTable = buildKeyTable(values[SLIDER_SETTING_UP],
+                    values[SLIDER_SETTING_MIDDLE], values[SLIDER_SETTING_BOTTOM]);
+        }
+
+        SliderConfig withValue(int setting, int value) {
+            if (values[setting] == value) {
+                return this;
+            }
+            int[] newValues = values.clone();
+            newValues[setting] = value;
+            return new SliderConfig(newValues);
+        }
     }
 
-    private void processEvent(final KeyEvent keyEvent) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
+    /**
+     * Builds a new dispatch table with the slider positions remapped to the
+     * given modes. Unsupported modes make the slider position pass through.
+     */
+    private static int[] buildKeyTable(int sliderUp, int sliderMiddle, int sliderBottom) {
+        int[] keyTable = sBaseKeyTable.clone();
+        keyTable[SLIDER_TOP - SCANCODE_MIN] = resolveSliderMode(sliderUp);
+        keyTable[SLIDER_MIDDLE - SCANCODE_MIN] = resolveSliderMode(sliderMiddle);
+        keyTable[SLIDER_BOTTOM - SCANCODE_MIN] = resolveSliderMode(sliderBottom);
+        return keyTable;
+    }
 
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
+    private static int resolveSliderMode(int mode) {
+        if (mode < SCANCODE_MIN || mode > SCANCODE_MAX) {
+            return KEY_PASS_THROUGH;
+        }
+        return sBaseKeyTable[mode - SCANCODE_MIN];
+    }
+
+    /**
+     * Hands the desired gesture node states to GestureNodeReceiver in the
+     * DeviceHandler app: the nodes may be written from its process, not
+     * from system_server. The desired state comes from the compiled gesture
+     * actions, so nothing is read from disk here. The device is kept awake
+     * until the app reports the writes done. Only touched on the event thread.
+     */
+    private class GestureNodes extends BroadcastReceiver {
+        private final WakeLock mWakeLock;
+        private int mPending;
+        // Per node path, as last reported by the app
+        private Bundle mDriftCounts;
+
+        GestureNodes() {
+            mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                    "GestureNodeWakeLock");
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        /**
+         * @param armed false disarms every gesture, true arms the ones with an action
+         * @param verify read the nodes back and count the ones the kernel reset
+         */
+        void apply(boolean armed, boolean verify) {
+            GestureAction[] actions = mGestureActions;
+            if (actions == null) {
+                actions = loadGestureSettings();
+            }
+            Intent intent = new Intent(GestureNodeReceiver.ACTION_SET_GESTURE_NODES);
+            intent.setClassName("com.slim.device", GestureNodeReceiver.class.getName());
+            for (int i = 0; i < actions.length; i++) {
+                intent.putExtra(sGesturePrefKeys[i], armed && mGesturesEnabled
+                        && actions[i].kind != GestureAction.Kind.NONE);
+            }
+            intent.putExtra(GestureNodeReceiver.EXTRA_VERIFY, verify);
+
+            mPending++;
+            mWakeLock.acquire(NODE_WRITE_TIMEOUT);
+            mContext.sendOrderedBroadcastAsUser(intent, UserHandle.SYSTEM, null, this,
+                    mEventHandler, Activity.RESULT_OK, null, null);
+        }
+
+        String getState() {
+            StringBuilder sb = new StringBuilder("pending=").append(mPending).append(" drift={");
+            if (mDriftCounts != null) {
+                for (String path : mDriftCounts.keySet()) {
+                    sb.append(' ').append(path).append('=').append(mDriftCounts.getInt(path));
+                }
+            }
+            return sb.append(" }").toString();
+        }
+
+        // Final result of the ordered broadcast: the app is done writing
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Bundle driftCounts = getResultExtras(false);
+            if (driftCounts != null) {
+                mDriftCounts = driftCounts;
+            }
+            if (mPending > 0 && --mPending == 0) {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    /**
+     * Keeps the touch controller from arming gestures in a pocket. While the
+     * screen is off it listens to the proximity sensor at a low rate; once
+     * the sensor stayed covered for POCKET_DISARM_DELAY the gesture nodes
+     * are disarmed, so accidental touches no longer wake the device just to
+     * be rejected by ProximitySession. Uncovering the sensor or turning the
+     * screen on arms them again. Only touched on the event thread.
+     *
+     * The delay runs on uptime, so a wakelock is held from the first covered
+     * sample until the disarm was handed to GestureNodes, which keeps the
+     * device awake until the app wrote the nodes.
+     */
+    private class PocketGuard implements SensorEventListener, Runnable {
+        private final WakeLock mWakeLock;
+        private boolean mRegistered;
+        private boolean mDisarmPending;
+        private boolean mPocketed;
+        private int mDisarmCount;
+
+        PocketGuard() {
+            mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                    "PocketGuardWakeLock");
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        void start() {
+            if (mRegistered || mProximitySensor == null) {
+                return;
+            }
+            // Proximity is on-change, the rate only bounds how often we hear about it
+            mRegistered = mSensorManager.registerListener(this, mProximitySensor,
+                    SensorManager.SENSOR_DELAY_NORMAL, mEventHandler);
+        }
+
+        void stop() {
+            if (mRegistered) {
                 mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took to long, ignoring.
+                mRegistered = false;
+            }
+            cancelDisarm();
+            rearm();
+        }
+
+        boolean isPocketed() {
+            return mPocketed;
+        }
+
+        String getState() {
+            return "registered=" + mRegistered + " pocketed=" + mPocketed
+                    + " disarmed=" + mDisarmCount;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            boolean far = event.values[0] == mProximitySensor.getMaximumRange();
+            if (far) {
+                cancelDisarm();
+                rearm();
+            } else if (!mPocketed && !mDisarmPending) {
+                mDisarmPending = true;
+                // The timeout only guards against the delay never running
+                mWakeLock.acquire(2 * POCKET_DISARM_DELAY);
+                mEventHandler.postAfter(this, POCKET_DISARM_DELAY);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+        // Covered for long enough
+        @Override
+        public void run() {
+            mDisarmPending = false;
+            mPocketed = true;
+            mDisarmCount++;
+            mGestureNodes.apply(false, false);
+            mWakeLock.release();
+        }
+
+        private void cancelDisarm() {
+            if (mDisarmPending) {
+                mEventHandler.removeCallbacks(this);
+                mDisarmPending = false;
+                mWakeLock.release();
+            }
+        }
+
+        private void rearm() {
+            if (mPocketed) {
+                mPocketed = false;
+                // GestureNodes takes its wakelock before the one of the sensor
+                // event that got us here ends
+                mGestureNodes.apply(true, false);
+            }
+        }
+    }
+
+    /**
+     * Owns the one proximity listener shared by all screen off gestures.
+     * Every gesture waiting for a verdict is resolved from the same sample,
+     * and the listener stays registered for PROXIMITY_IDLE_TIMEOUT so that
+     * gestures arriving back to back reuse the last reading instead of
+     * registering with the sensor HAL again. The proximity wakelock is held
+     * for exactly as long as the listener is registered: the idle timeout
+     * runs on uptime, so without it a suspend would leave the sensor on.
+     * Only touched on the event thread, apart from the decision window.
+     *
+     * The time from registration to the first sample is tracked over the
+     * last PROXIMITY_LATENCY_SAMPLES registrations, and the decision window
+     * gesture requests wait for is derived from its percentile estimate.
+     */
+    private class ProximitySession implements SensorEventListener, Runnable {
+        private KeyEvent mPendingEvent;
+        private boolean mRegistered;
+        private boolean mHasSample;
+        private boolean mFar;
+
+        private long mRegisterTime;
+        private final long[] mLatencies = new long[PROXIMITY_LATENCY_SAMPLES];
+        private final long[] mSortedLatencies = new long[PROXIMITY_LATENCY_SAMPLES];
+        private int mLatencyCount;
+        private int mLatencyIndex;
+        private volatile int mLatencyEstimate = -1;
+        private volatile int mDecisionWindow = PROXIMITY_DEFAULT_WINDOW;
+
+        int getDecisionWindow() {
+            return mDecisionWindow;
+        }
+
+        String getState() {
+            return "registered=" + mRegistered + " pending=" + (mPendingEvent != null)
+                    + " hasSample=" + mHasSample;
+        }
+
+        /**
+         * @return the first-sample latency percentile in ms, -1 until measured
+         */
+        int getLatencyEstimate() {
+            return mLatencyEstimate;
+        }
+
+        void request(KeyEvent keyEvent) {
+            mEventHandler.removeCallbacks(this);
+            mEventHandler.postAfter(this, PROXIMITY_IDLE_TIMEOUT);
+            if (!mRegistered) {
+                mProximityWakeLock.acquire();
+                mRegisterTime = mClock.uptimeMillis();
+                mRegistered = mSensorManager.registerListener(this, mProximitySensor,
+                        SensorManager.SENSOR_DELAY_FASTEST, mEventHandler);
+                if (!mRegistered) {
+                    // Let the delayed gesture request fire on its own
+                    mProximityWakeLock.release();
                     return;
                 }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForKeyEvent(keyEvent);
-                    mEventHandler.sendMessage(msg);
-                }
             }
+            if (mHasSample) {
+                // Proximity is an on-change sensor, the last sample is still current
+                dispatch(keyEvent, mFar);
+                return;
+            }
+            mPendingEvent = keyEvent;
+        }
 
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (!mHasSample) {
+                addLatencySample(mClock.uptimeMillis() - mRegisterTime);
+            }
+            mFar = event.values[0] == mProximitySensor.getMaximumRange();
+            mHasSample = true;
+            if (mPendingEvent != null) {
+                KeyEvent keyEvent = mPendingEvent;
+                mPendingEvent = null;
+                dispatch(keyEvent, mFar);
+            }
+        }
 
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+        // Idle timeout: drop the listener, its wakelock and anything still waiting on it
+        @Override
+        public void run() {
+            if (mRegistered) {
+                mSensorManager.unregisterListener(this);
+                mProximityWakeLock.release();
+                mRegistered = false;
+            }
+            mHasSample = false;
+            mPendingEvent = null;
+        }
+
+        private void addLatencySample(long latency) {
+            mLatencies[mLatencyIndex] = latency;
+            mLatencyIndex = (mLatencyIndex + 1) % PROXIMITY_LATENCY_SAMPLES;
+            if (mLatencyCount < PROXIMITY_LATENCY_SAMPLES) {
+                mLatencyCount++;
+            }
+            System.arraycopy(mLatencies, 0, mSortedLatencies, 0, mLatencyCount);
+            Arrays.sort(mSortedLatencies, 0, mLatencyCount);
+            int estimate = (int) mSortedLatencies[
+                    (mLatencyCount - 1) * PROXIMITY_LATENCY_PERCENTILE / 100];
+            int window = Math.max(PROXIMITY_MIN_WINDOW,
+                    Math.min(PROXIMITY_MAX_WINDOW, estimate + PROXIMITY_WINDOW_SLACK));
+            if (estimate != mLatencyEstimate) {
+                Log.d(TAG, "Proximity latency p" + PROXIMITY_LATENCY_PERCENTILE + " "
+                        + estimate + "ms, decision window " + window + "ms");
+            }
+            mLatencyEstimate = estimate;
+            mDecisionWindow = window;
+        }
+
+        private void dispatch(KeyEvent keyEvent, boolean far) {
+            recordLatency(keyEvent.getScanCode(), STAGE_SENSOR, keyEvent);
+            if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
+                // The sensor took to long, ignoring.
+                return;
+            }
+            mEventHandler.removeMessages(GESTURE_REQUEST);
+            if (far) {
+                Message msg = getMessageForScanCode(GESTURE_REQUEST,
+                        keyEvent.getScanCode(), keyEvent);
+                mEventHandler.sendMessage(msg);
+            } else {
+                mEventHandler.sendEmptyMessage(CAMERA_PREWARM_CANCEL);
+                if (mSpeculativeWakeEnabled) {
+                    mEventHandler.sendEmptyMessage(SPECULATIVE_WAKE_ROLLBACK);
+                }
+            }
+        }
     }
 
+    /**
+     * Keeps one SliderConfig per user, filled on first use. Switching users
+     * only swaps the published snapshot, and a setting change only touches
+     * the snapshot of the user it belongs to.
+     */
     private class SettingsObserver extends ContentObserver {
+        private final Uri[] mUris = new Uri[sSliderSettings.length];
+        private final SparseArray<SliderConfig> mUserConfigs = new SparseArray<>();
+        private int mCurrentUserId;
+
         SettingsObserver(Handler handler) {
             super(handler);
         }
@@ -344,44 +1450,77 @@ public class KeyHandler implements DeviceKeyHandler {
         void observe() {
             ContentResolver resolver = mContext.getContentResolver();
 
-            resolver.registerContentObserver(Settings.System.getUriFor(SETTING_NOTIF_SLIDER_UP),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(
-                    Settings.System.getUriFor(SETTING_NOTIF_SLIDER_MIDDLE), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(
-                    Settings.System.getUriFor(SETTING_NOTIF_SLIDER_BOTTOM), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(
-                    Settings.System.getUriFor(SETTING_NOTIF_SLIDER_HAPTIC_FEEDBACK), false, this,
-                    UserHandle.USER_ALL);
+            for (int i = 0; i < sSliderSettings.length; i++) {
+                mUris[i] = Settings.System.getUriFor(sSliderSettings[i]);
+                resolver.registerContentObserver(mUris[i], false, this, UserHandle.USER_ALL);
+            }
+            IntentFilter filter = new IntentFilter(Intent.ACTION_USER_SWITCHED);
+            filter.addAction(Intent.ACTION_USER_REMOVED);
+            mContext.registerReceiverAsUser(mUserReceiver, UserHandle.ALL, filter, null,
+                    mEventHandler);
 
-            update();
+            switchUser(ActivityManager.getCurrentUser());
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            update();
+        public void onChange(boolean selfChange, Uri uri, int userId) {
+            SliderConfig config = mUserConfigs.get(userId);
+            if (config == null) {
+                // Not loaded yet, it will be read fresh when needed
+                return;
+            }
+            for (int i = 0; i < mUris.length; i++) {
+                if (mUris[i].equals(uri)) {
+                    config = config.withValue(i, readSetting(i, userId));
+                    break;
+                }
+            }
+            mUserConfigs.put(userId, config);
+            if (userId == mCurrentUserId) {
+                mSliderConfig = config;
+            }
         }
 
-        void update() {
-            mSliderUpAction = Settings.System.getInt(mContext.getContentResolver(),
-                        SETTING_NOTIF_SLIDER_UP, 601);
-            mSliderMiddleAction = Settings.System.getInt(mContext.getContentResolver(),
-                        SETTING_NOTIF_SLIDER_MIDDLE, 602);
-            mSliderBottomAction = Settings.System.getInt(mContext.getContentResolver(),
-                        SETTING_NOTIF_SLIDER_BOTTOM, 603);
+        private final BroadcastReceiver mUserReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int userId = intent.getIntExtra(Intent.EXTRA_USER_HANDLE, UserHandle.USER_NULL);
+                if (userId == UserHandle.USER_NULL) {
+                    return;
+                }
+                if (Intent.ACTION_USER_SWITCHED.equals(intent.getAction())) {
+                    switchUser(userId);
+                    // Intent actions were resolved for the previous user
+                    if (mGestureActions != null) {
+                        loadGestureSettings();
+                    }
+                } else {
+                    mUserConfigs.remove(userId);
+                }
+            }
+        };
 
+        private void switchUser(int userId) {
+            SliderConfig config = mUserConfigs.get(userId);
+            if (config == null) {
+                config = load(userId);
+                mUserConfigs.put(userId, config);
+            }
+            mCurrentUserId = userId;
+            mSliderConfig = config;
+        }
 
-            if (Settings.System.getInt(mContext.getContentResolver(),
-                        SETTING_NOTIF_SLIDER_HAPTIC_FEEDBACK, 1) != 0) {
-                mVibrator = (Vibrator) mContext.getSystemService(Context.VIBRATOR_SERVICE);
-                if (mVibrator == null || !mVibrator.hasVibrator()) {
-                    mVibrator = null;
-                }
-            } else {
-                mVibrator = null;
+        private SliderConfig load(int userId) {
+            int[] values = new int[sSliderSettings.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readSetting(i, userId);
             }
+            return new SliderConfig(values);
+        }
+
+        private int readSetting(int setting, int userId) {
+            return Settings.System.getIntForUser(mContext.getContentResolver(),
+                    sSliderSettings[setting], sSliderSettingDefaults[setting], userId);
         }
     }
 
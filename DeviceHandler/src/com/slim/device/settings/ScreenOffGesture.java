@@ -54,6 +54,13 @@ public class ScreenOffGesture extends PreferenceFragment implements
 
     public static final String GESTURE_SETTINGS = "screen_off_gesture_settings";
 
+    // Sent whenever GESTURE_SETTINGS was committed, KeyHandler reloads its action cache on it
+    public static final String ACTION_GESTURE_SETTINGS_CHANGED =
+            "com.slim.device.action.GESTURE_SETTINGS_CHANGED";
+    // Required to send ACTION_GESTURE_SETTINGS_CHANGED
+    public static final String PERMISSION_GESTURE_SETTINGS =
+            "com.slim.device.permission.GESTURE_SETTINGS";
+
     public static final String PREF_GESTURE_ENABLE = "enable_gestures";
     public static final String PREF_GESTURE_CIRCLE = "gesture_circle";
     public static final String PREF_GESTURE_DOUBLE_SWIPE = "gesture_double_swipe";
@@ -61,6 +68,8 @@ public class ScreenOffGesture extends PreferenceFragment implements
     public static final String PREF_GESTURE_ARROW_DOWN = "gesture_arrow_down";
     public static final String PREF_GESTURE_ARROW_LEFT = "gesture_arrow_left";
     public static final String PREF_GESTURE_ARROW_RIGHT = "gesture_arrow_right";
+    public static final String PREF_GESTURE_SPECULATIVE_WAKE = "gesture_speculative_wake";
+    public static final String PREF_GESTURE_POCKET_DISARM = "gesture_pocket_disarm";
 
     private static final int DLG_SHOW_ACTION_DIALOG  = 0;
     private static final int DLG_RESET_TO_DEFAULT    = 1;
@@ -74,6 +83,8 @@ public class ScreenOffGesture extends PreferenceFragment implements
     private Preference mGestureArrowLeft;
     private Preference mGestureArrowRight;
     private SwitchPreference mEnableGestures;
+    private SwitchPreference mSpeculativeWake;
+    private SwitchPreference mPocketDisarm;
 
     private boolean mCheckPreferences;
     private SharedPreferences mScreenOffGestureSharedPreferences;
@@ -153,6 +164,16 @@ public class ScreenOffGesture extends PreferenceFragment implements
         mEnableGestures.setChecked(enableGestures);
         mEnableGestures.setOnPreferenceChangeListener(this);
 
+        mSpeculativeWake = (SwitchPreference) prefs.findPreference(PREF_GESTURE_SPECULATIVE_WAKE);
+        mSpeculativeWake.setChecked(
+                mScreenOffGestureSharedPreferences.getBoolean(PREF_GESTURE_SPECULATIVE_WAKE, false));
+        mSpeculativeWake.setOnPreferenceChangeListener(this);
+
+        mPocketDisarm = (SwitchPreference) prefs.findPreference(PREF_GESTURE_POCKET_DISARM);
+        mPocketDisarm.setChecked(
+                mScreenOffGestureSharedPreferences.getBoolean(PREF_GESTURE_POCKET_DISARM, false));
+        mPocketDisarm.setOnPreferenceChangeListener(this);
+
         mCheckPreferences = true;
         return prefs;
     }
@@ -223,7 +244,17 @@ public class ScreenOffGesture extends PreferenceFragment implements
         if (preference == mEnableGestures) {
             mScreenOffGestureSharedPreferences.edit()
                     .putBoolean(PREF_GESTURE_ENABLE, (Boolean) newValue).commit();
-            KernelControl.enableGestures((Boolean) newValue);
+            onGestureSettingsChanged();
+            return true;
+        } else if (preference == mSpeculativeWake) {
+            mScreenOffGestureSharedPreferences.edit()
+                    .putBoolean(PREF_GESTURE_SPECULATIVE_WAKE, (Boolean) newValue).commit();
+            onGestureSettingsChanged();
+            return true;
+        } else if (preference == mPocketDisarm) {
+            mScreenOffGestureSharedPreferences.edit()
+                    .putBoolean(PREF_GESTURE_POCKET_DISARM, (Boolean) newValue).commit();
+            onGestureSettingsChanged();
             return true;
         }
         return false;
@@ -234,6 +265,8 @@ public class ScreenOffGesture extends PreferenceFragment implements
         SharedPreferences.Editor editor = mScreenOffGestureSharedPreferences.edit();
         mScreenOffGestureSharedPreferences.edit()
                 .putBoolean(PREF_GESTURE_ENABLE, true).commit();
+        editor.putBoolean(PREF_GESTURE_SPECULATIVE_WAKE, false).commit();
+        editor.putBoolean(PREF_GESTURE_POCKET_DISARM, false).commit();
         editor.putString(PREF_GESTURE_CIRCLE,
                 ActionConstants.ACTION_CAMERA).commit();
         editor.putString(PREF_GESTURE_DOUBLE_SWIPE,
@@ -247,10 +280,19 @@ public class ScreenOffGesture extends PreferenceFragment implements
         editor.putString(PREF_GESTURE_ARROW_RIGHT,
                 ActionConstants.ACTION_MEDIA_NEXT).commit();
         editor.commit();
-        KernelControl.enableGestures(true);
+        onGestureSettingsChanged();
         reloadSettings();
     }
 
+    // Arm the kernel gestures that have an action and let KeyHandler reload its actions
+    private void onGestureSettingsChanged() {
+        KernelControl.enableGestures(mScreenOffGestureSharedPreferences);
+
+        Intent intent = new Intent(ACTION_GESTURE_SETTINGS_CHANGED);
+        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+        getActivity().sendBroadcast(intent, PERMISSION_GESTURE_SETTINGS);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -263,6 +305,7 @@ public class ScreenOffGesture extends PreferenceFragment implements
             return;
         }
         mScreenOffGestureSharedPreferences.edit().putString(mPendingSettingsKey, action).commit();
+        onGestureSettingsChanged();
         reloadSettings();
         mPendingSettingsKey = null;
     }
@@ -348,6 +391,7 @@ public class ScreenOffGesture extends PreferenceFragment implements
                                 getOwner().mScreenOffGestureSharedPreferences.edit()
                                         .putString(settingsKey,
                                         getOwner().sFinalActionDialogArray.values[item]).commit();
+                                getOwner().onGestureSettingsChanged();
                                 getOwner().reloadSettings();
                             }
                         }
@@ -56,12 +56,13 @@ public class SliderSettings extends PreferenceActivity
         return false;
         /*
         final String file;
+        final KernelControl.Capabilities capabilities = KernelControl.getCapabilities();
         if (preference == mSliderTop) {
-            file = KernelControl.KEYCODE_SLIDER_TOP;
+            file = capabilities.getSliderNode(KernelControl.SLIDER_NODE_TOP);
         } else if (preference == mSliderMiddle) {
-            file = KernelControl.KEYCODE_SLIDER_MIDDLE;
+            file = capabilities.getSliderNode(KernelControl.SLIDER_NODE_MIDDLE);
         } else if (preference == mSliderBottom) {
-            file = KernelControl.KEYCODE_SLIDER_BOTTOM;
+            file = capabilities.getSliderNode(KernelControl.SLIDER_NODE_BOTTOM);
         } else {
             return false;
         }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.slim.device.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Integer I/O on sysfs and procfs nodes. Values are parsed from and
+ * formatted into a per-thread buffer without going through Strings, and
+ * every call reports why it failed instead of just logging it.
+ */
+public final class KernelNodeIo {
+
+    public static final int OK = 0;
+    public static final int ERROR_MISSING = 1;
+    public static final int ERROR_PERMISSION_DENIED = 2;
+    // The driver rejected the value (EINVAL)
+    public static final int ERROR_INVALID_ARGUMENT = 3;
+    // The node didn't contain a number
+    public static final int ERROR_FORMAT = 4;
+    public static final int ERROR_IO = 5;
+
+    private static final int BUFFER_SIZE = 32;
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private KernelNodeIo() {
+        // this class is not supposed to be instantiated
+    }
+
+    /**
+     * Reads the integer at the start of the given node into value[0].
+     *
+     * @return OK or one of the ERROR_* codes
+     */
+    public static int readInt(String path, int[] value) {
+        ByteBuffer buffer = sBuffer.get();
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // keep reading, sysfs may hand out the value in pieces
+            }
+        } catch (IOException e) {
+            return toError(e);
+        }
+        buffer.flip();
+        return parseInt(buffer, value);
+    }
+
+    /**
+     * Writes the given integer to the node.
+     *
+     * @return OK or one of the ERROR_* codes
+     */
+    public static int writeInt(String path, int value) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+            return write(channel, value);
+        } catch (IOException e) {
+            return toError(e);
+        }
+    }
+
+    /**
+     * Writes values[i] to paths[i] for every node, opening each node once.
+     * A failing node doesn't stop the others.
+     *
+     * @param results receives the OK / ERROR_* code per node, may be null
+     * @return number of nodes that failed
+     */
+    public static int writeInts(String[] paths, int[] values, int[] results) {
+        int failed = 0;
+        for (int i = 0; i < paths.length; i++) {
+            int result = writeInt(paths[i], values[i]);
+            if (results != null) {
+                results[i] = result;
+            }
+            if (result != OK) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    public static String errorToString(int error) {
+        switch (error) {
+            case OK:
+                return "ok";
+            case ERROR_MISSING:
+                return "missing";
+            case ERROR_PERMISSION_DENIED:
+                return "permission denied";
+            case ERROR_INVALID_ARGUMENT:
+                return "invalid argument";
+            case ERROR_FORMAT:
+                return "not a number";
+            default:
+                return "I/O error";
+        }
+    }
+
+    private static int write(FileChannel channel, int value) throws IOException {
+        ByteBuffer buffer = sBuffer.get();
+        buffer.clear();
+        formatInt(buffer, value);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return OK;
+    }
+
+    private static int parseInt(ByteBuffer buffer, int[] value) {
+        boolean negative = false;
+        boolean digits = false;
+        long result = 0;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '-' && !digits && !negative) {
+                negative = true;
+            } else if (b >= '0' && b <= '9') {
+                result = result * 10 + (b - '0');
+                digits = true;
+                if (result > (long) Integer.MAX_VALUE + 1) {
+                    return ERROR_FORMAT;
+                }
+            } else {
+                break;
+            }
+        }
+        if (!digits) {
+            return ERROR_FORMAT;
+        }
+        result = negative ? -result : result;
+        if (result > Integer.MAX_VALUE) {
+            return ERROR_FORMAT;
+        }
+        value[0] = (int) result;
+        return OK;
+    }
+
+    private static void formatInt(ByteBuffer buffer, int value) {
+        long v = value;
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + (v % 10)));
+            v /= 10;
+        } while (v > 0);
+        // Digits went in backwards
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte tmp = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, tmp);
+        }
+    }
+
+    private static int toError(IOException e) {
+        if (e instanceof NoSuchFileException) {
+            return ERROR_MISSING;
+        } else if (e instanceof AccessDeniedException) {
+            return ERROR_PERMISSION_DENIED;
+        }
+        String message = e.getMessage();
+        if (message != null && (message.contains("EINVAL")
+                || message.contains("Invalid argument"))) {
+            return ERROR_INVALID_ARGUMENT;
+        }
+        return ERROR_IO;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.slim.device.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for kernel nodes. Writes are applied on a single
+ * background thread shortly after they were queued; only the last value
+ * queued for a node is written, and only if the node doesn't hold it
+ * already, either according to the last write or to a read-back.
+ */
+public final class KernelNodeWriter {
+    private static final String TAG = "KernelNodeWriter";
+
+    // Gives quick successive changes time to collapse into one write
+    private static final int WRITE_DELAY = 50;
+
+    private static KernelNodeWriter sInstance;
+
+    private final Handler mHandler;
+    // Guarded by this
+    private final HashMap<String, Integer> mPending = new HashMap<>();
+    // Queued nodes whose current value must be read back even if known
+    private final HashSet<String> mVerify = new HashSet<>();
+    private final HashMap<String, Integer> mDriftCounts = new HashMap<>();
+    private boolean mScheduled;
+    // Only touched on the writer thread
+    private final HashMap<String, Integer> mKnownValues = new HashMap<>();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public static synchronized KernelNodeWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new KernelNodeWriter();
+        }
+        return sInstance;
+    }
+
+    private KernelNodeWriter() {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queues the value for the node, replacing any value still queued for it.
+     */
+    public synchronized void write(String path, int value) {
+        mPending.put(path, value);
+        schedule();
+    }
+
+    /**
+     * Like write(), but reads the node back first regardless of what was
+     * last written to it. A node that doesn't hold the value counts as
+     * drifted, e.g. because the kernel reset it behind our back.
+     */
+    public synchronized void verify(String path, int value) {
+        mPending.put(path, value);
+        mVerify.add(path);
+        schedule();
+    }
+
+    /**
+     * @return number of times verify() found each node drifted
+     */
+    public synchronized Map<String, Integer> getDriftCounts() {
+        return new HashMap<>(mDriftCounts);
+    }
+
+    // Called with the lock held
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mDrain, WRITE_DELAY);
+        }
+    }
+
+    /**
+     * Applies everything queued so far and waits for it to hit the kernel.
+     *
+     * @return false if the writes didn't complete within the timeout
+     */
+    public boolean flush(long timeoutMillis) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        flush(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        try {
+            return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Applies everything queued so far without waiting for it; the callback
+     * runs on the writer thread once the writes hit the kernel.
+     */
+    public void flush(final Runnable callback) {
+        synchronized (this) {
+            mHandler.removeCallbacks(mDrain);
+            mScheduled = false;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                callback.run();
+            }
+        });
+    }
+
+    private void drain() {
+        HashMap<String, Integer> pending;
+        HashSet<String> verify;
+        synchronized (this) {
+            mScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = new HashMap<>(mPending);
+            mPending.clear();
+            verify = new HashSet<>(mVerify);
+            mVerify.clear();
+        }
+
+        int[] current = new int[1];
+        String[] paths = new String[pending.size()];
+        int[] values = new int[pending.size()];
+        int count = 0;
+        for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+            String path = entry.getKey();
+            int value = entry.getValue();
+            boolean verifying = verify.contains(path);
+            if (verifying) {
+                mKnownValues.remove(path);
+            }
+            Integer known = mKnownValues.get(path);
+            if (known == null && KernelNodeIo.readInt(path, current) == KernelNodeIo.OK) {
+                known = current[0];
+                mKnownValues.put(path, known);
+                if (verifying && known != value) {
+                    countDrift(path, known, value);
+                }
+            }
+            if (known == null || known != value) {
+                paths[count] = path;
+                values[count++] = value;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        String[] changedPaths = new String[count];
+        int[] changedValues = new int[count];
+        System.arraycopy(paths, 0, changedPaths, 0, count);
+        System.arraycopy(values, 0, changedValues, 0, count);
+        int[] results = new int[count];
+        KernelNodeIo.writeInts(changedPaths, changedValues, results);
+        for (int i = 0; i < count; i++) {
+            if (results[i] == KernelNodeIo.OK) {
+                mKnownValues.put(changedPaths[i], changedValues[i]);
+            } else {
+                mKnownValues.remove(changedPaths[i]);
+                Log.e(TAG, "Could not write " + changedValues[i] + " to " + changedPaths[i]
+                        + ": " + KernelNodeIo.errorToString(results[i]));
+            }
+        }
+    }
+
+    private synchronized void countDrift(String path, int actual, int expected) {
+        Integer count = mDriftCounts.get(path);
+        mDriftCounts.put(path, count == null ? 1 : count + 1);
+        Log.w(TAG, path + " drifted to " + actual + ", restoring " + expected);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.slim.device.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of two millisecond buckets.
+ * Bucket 0 counts samples below 1ms, bucket i counts [2^(i-1), 2^i) ms
+ * and the last bucket everything above. Recording never allocates.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 14;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        mBuckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        mTotal.addAndGet(millis);
+
+        long max;
+        while (millis > (max = mMax.get()) && !mMax.compareAndSet(max, millis)) {
+            // retry, someone else recorded a sample meanwhile
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mBuckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return upper bound in ms of the bucket holding the given percentile,
+     * or -1 if nothing was recorded yet
+     */
+    public long getPercentile(int percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Single line summary, empty if nothing was recorded yet.
+     */
+    @Override
+    public String toString() {
+        long count = getCount();
+        if (count == 0) {
+            return "";
+        }
+        return "n=" + count
+                + " mean=" + (mTotal.get() / count) + "ms"
+                + " p50<=" + getPercentile(50) + "ms"
+                + " p90<=" + getPercentile(90) + "ms"
+                + " p99<=" + getPercentile(99) + "ms"
+                + " max=" + mMax.get() + "ms";
+    }
+}
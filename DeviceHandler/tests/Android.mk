@@ -0,0 +1,37 @@
+#
+# Copyright (C) 2019 Android Ice Cold Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_CERTIFICATE := platform
+LOCAL_PACKAGE_NAME := DeviceHandlerTests
+LOCAL_PRIVATE_PLATFORM_APIS := true
+LOCAL_MODULE_TAGS := tests
+LOCAL_INSTRUMENTATION_FOR := DeviceHandler
+
+LOCAL_JAVA_LIBRARIES := android.test.runner android.test.base android.test.mock
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    android-support-test \
+    frameworks-base-testutils \
+    mockito-target-inline-minus-junit4
+
+# Mocking PowerManager, WakeLock and Sensor and spying on ContentResolver need
+# the inline mock maker
+LOCAL_JNI_SHARED_LIBRARIES := libdexmakerjvmtiagent
+
+include $(BUILD_PACKAGE)
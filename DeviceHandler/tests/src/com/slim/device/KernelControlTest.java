@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.slim.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.slim.device.settings.ScreenOffGesture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs KernelControl against a fake node tree in a temporary directory.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class KernelControlTest {
+    private static final long FLUSH_TIMEOUT = 1000;
+
+    private static final String[] sGestureNodes = new String[]{
+        "proc/touchpanel/letter_o_enable",
+        "proc/touchpanel/up_arrow_enable",
+        "proc/touchpanel/double_swipe_enable",
+        "proc/touchpanel/right_arrow_enable",
+        "proc/touchpanel/left_arrow_enable",
+        "proc/touchpanel/down_arrow_enable",
+    };
+
+    @Rule
+    public final TemporaryFolder mRoot = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        for (String node : sGestureNodes) {
+            writeNode(node, "0");
+        }
+        KernelControl.setNodeRoot(mRoot.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        KernelControl.setNodeRoot(null);
+    }
+
+    @Test
+    public void probesOnlyNodesThatExist() {
+        KernelControl.Capabilities capabilities = KernelControl.getCapabilities();
+
+        assertTrue(capabilities.hasTouchscreenGestures());
+        assertEquals(new File(mRoot.getRoot(), sGestureNodes[0]).getPath(),
+                capabilities.getGestureNode(0));
+        assertTrue(capabilities.isGestureNodeWritable(0));
+        // No tri-state-key directory in the fake tree
+        assertFalse(capabilities.hasSlider());
+        assertNull(capabilities.getSliderNode(KernelControl.SLIDER_NODE_TOP));
+    }
+
+    @Test
+    public void enableGesturesWritesEveryNode() throws Exception {
+        KernelControl.enableGestures(true);
+        assertTrue(KernelControl.flush(FLUSH_TIMEOUT));
+
+        for (String node : sGestureNodes) {
+            assertEquals(node, "1", readNode(node));
+        }
+    }
+
+    @Test
+    public void verifyRestoresDriftedNode() throws Exception {
+        Bundle armed = new Bundle();
+        armed.putBoolean(ScreenOffGesture.PREF_GESTURE_CIRCLE, true);
+        KernelControl.setGestures(armed, false);
+        assertTrue(KernelControl.flush(FLUSH_TIMEOUT));
+        assertEquals("1", readNode(sGestureNodes[0]));
+        assertEquals("0", readNode(sGestureNodes[1]));
+
+        // The kernel resets the node behind our back
+        writeNode(sGestureNodes[0], "0");
+        String path = KernelControl.getCapabilities().getGestureNode(0);
+        Integer before = KernelControl.getDriftCounts().get(path);
+
+        KernelControl.setGestures(armed, true);
+        assertTrue(KernelControl.flush(FLUSH_TIMEOUT));
+
+        assertEquals("1", readNode(sGestureNodes[0]));
+        assertEquals((before == null ? 0 : before) + 1,
+                (int) KernelControl.getDriftCounts().get(path));
+    }
+
+    private void writeNode(String node, String value) throws IOException {
+        File file = new File(mRoot.getRoot(), node);
+        file.getParentFile().mkdirs();
+        FileUtils.stringToFile(file, value);
+    }
+
+    private String readNode(String node) throws IOException {
+        return FileUtils.readTextFile(new File(mRoot.getRoot(), node), 0, null).trim();
+    }
+}
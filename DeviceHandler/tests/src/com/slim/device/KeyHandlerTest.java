@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.slim.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.ActivityManager;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.ContentObserver;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.media.AudioManager;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.provider.Settings;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.view.KeyEvent;
+
+import com.android.internal.util.test.FakeSettingsProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives KeyHandler through exact event interleavings in virtual time, see
+ * VirtualTimeLooper. Sensor samples are delivered straight to the registered
+ * listener, i.e. before anything the looper would run at the same time.
+ * Settings live in a FakeSettingsProvider, nothing on the device is touched.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class KeyHandlerTest {
+    // Scancodes from the touchpanel driver, see KeyHandler
+    private static final int GESTURE_CIRCLE = 250;
+    private static final int GESTURE_SWIPE_DOWN = 251;
+    private static final int GESTURE_ARROW_UP = 255;
+    // Slider modes, see KeyHandler.MODE_*
+    private static final int MODE_VIBRATE = 604;
+    private static final int MODE_RING = 605;
+    private static final int MODE_SILENT = 620;
+
+    private static final float PROXIMITY_RANGE = 5f;
+    // KeyHandler's decision window before any latency was measured
+    private static final int DEFAULT_WINDOW = 200;
+    // KeyHandler.PROXIMITY_IDLE_TIMEOUT
+    private static final int PROXIMITY_IDLE_TIMEOUT = 2000;
+
+    // Storms: 100 events at 100 Hz
+    private static final int STORM_EVENTS = 100;
+    private static final int STORM_INTERVAL = 10;
+
+    private static final String[] sSliderSettings = new String[]{
+        KeyHandler.SETTING_NOTIF_SLIDER_UP,
+        KeyHandler.SETTING_NOTIF_SLIDER_MIDDLE,
+        KeyHandler.SETTING_NOTIF_SLIDER_BOTTOM,
+        KeyHandler.SETTING_NOTIF_SLIDER_HAPTIC_FEEDBACK,
+    };
+
+    private final VirtualTimeLooper mLooper = new VirtualTimeLooper();
+    private AudioManager mAudioManager;
+    private PowerManager.WakeLock mProximityWakeLock;
+    private SensorManager mSensorManager;
+    private final List<Integer> mLaunched = new ArrayList<>();
+    private KeyHandler mKeyHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        FakeSettingsProvider.clearSettingsProvider();
+        MockContentResolver resolver = spy(new MockContentResolver());
+        resolver.addProvider(Settings.AUTHORITY, new FakeSettingsProvider());
+        // The observers would end up in the real ContentService
+        doNothing().when(resolver).registerContentObserver(any(Uri.class), anyBoolean(),
+                any(ContentObserver.class));
+        doNothing().when(resolver).registerContentObserver(any(Uri.class), anyBoolean(),
+                any(ContentObserver.class), anyInt());
+
+        // Known slider layout, without haptics
+        int userId = ActivityManager.getCurrentUser();
+        int[] sliderValues = new int[]{ MODE_RING, MODE_VIBRATE, MODE_SILENT, 0 };
+        for (int i = 0; i < sSliderSettings.length; i++) {
+            Settings.System.putIntForUser(resolver, sSliderSettings[i], sliderValues[i],
+                    userId);
+        }
+
+        Context context = mock(Context.class);
+        when(context.getContentResolver()).thenReturn(resolver);
+        doThrow(new NameNotFoundException())
+                .when(context).createPackageContext(anyString(), anyInt());
+
+        PowerManager powerManager = mock(PowerManager.class);
+        when(powerManager.newWakeLock(anyInt(), anyString()))
+                .thenReturn(mock(PowerManager.WakeLock.class));
+        mProximityWakeLock = mock(PowerManager.WakeLock.class);
+        when(powerManager.newWakeLock(anyInt(), eq("ProximityWakeLock")))
+                .thenReturn(mProximityWakeLock);
+        when(context.getSystemService(Context.POWER_SERVICE)).thenReturn(powerManager);
+
+        mAudioManager = mock(AudioManager.class);
+        when(context.getSystemService(Context.AUDIO_SERVICE)).thenReturn(mAudioManager);
+        when(context.getSystemService(Context.NOTIFICATION_SERVICE))
+                .thenReturn(mock(NotificationManager.class));
+
+        Sensor proximity = mock(Sensor.class);
+        when(proximity.getMaximumRange()).thenReturn(PROXIMITY_RANGE);
+        mSensorManager = mock(SensorManager.class);
+        when(mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY)).thenReturn(proximity);
+        when(mSensorManager.registerListener(any(SensorEventListener.class), any(Sensor.class),
+                anyInt(), any(Handler.class))).thenReturn(true);
+        when(context.getSystemService(Context.SENSOR_SERVICE)).thenReturn(mSensorManager);
+
+        mKeyHandler = new KeyHandler(context, mLooper.getLooper(), mLooper) {
+            @Override
+            void launchGesture(int scanCode, GestureAction action, KeyEvent event) {
+                mLaunched.add(scanCode);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        FakeSettingsProvider.clearSettingsProvider();
+    }
+
+    @Test
+    public void nearJustInsideWindowRejectsGesture() throws Exception {
+        sendKey(GESTURE_SWIPE_DOWN);
+        mLooper.dispatchAll();
+        SensorEventListener listener = getProximityListener();
+
+        advance(DEFAULT_WINDOW - 1);
+        listener.onSensorChanged(newProximityEvent(0f));
+        mLooper.dispatchAll();
+        advance(DEFAULT_WINDOW);
+
+        assertEquals(0, mLaunched.size());
+    }
+
+    @Test
+    public void nearJustOutsideWindowIsTooLate() throws Exception {
+        sendKey(GESTURE_SWIPE_DOWN);
+        mLooper.dispatchAll();
+        SensorEventListener listener = getProximityListener();
+
+        advance(DEFAULT_WINDOW + 1);
+        listener.onSensorChanged(newProximityEvent(0f));
+        mLooper.dispatchAll();
+
+        assertEquals(1, mLaunched.size());
+        assertEquals(GESTURE_SWIPE_DOWN, (int) mLaunched.get(0));
+    }
+
+    @Test
+    public void farInsideWindowLaunchesGesture() throws Exception {
+        sendKey(GESTURE_SWIPE_DOWN);
+        mLooper.dispatchAll();
+        SensorEventListener listener = getProximityListener();
+
+        advance(DEFAULT_WINDOW - 1);
+        listener.onSensorChanged(newProximityEvent(PROXIMITY_RANGE));
+        mLooper.dispatchAll();
+        advance(DEFAULT_WINDOW);
+
+        assertEquals(1, mLaunched.size());
+    }
+
+    @Test
+    public void secondGestureWithin50msReplacesFirst() throws Exception {
+        sendKey(GESTURE_SWIPE_DOWN);
+        mLooper.dispatchAll();
+        SensorEventListener listener = getProximityListener();
+
+        advance(50);
+        sendKey(GESTURE_ARROW_UP);
+        mLooper.dispatchAll();
+        advance(30);
+        listener.onSensorChanged(newProximityEvent(PROXIMITY_RANGE));
+        mLooper.dispatchAll();
+        // Nothing of the first gesture may be left to fire later on
+        advance(DEFAULT_WINDOW * 2);
+
+        assertEquals(1, mLaunched.size());
+        assertEquals(GESTURE_ARROW_UP, (int) mLaunched.get(0));
+    }
+
+    @Test
+    public void sliderBounceAppliesOnlyRestingPosition() {
+        int window = mKeyHandler.getSliderSettleWindow();
+
+        sendKey(KeyHandler.SLIDER_TOP);
+        mLooper.dispatchAll();
+        advance(window / 2);
+        sendKey(KeyHandler.SLIDER_MIDDLE);
+        mLooper.dispatchAll();
+        advance(window / 2);
+        sendKey(KeyHandler.SLIDER_BOTTOM);
+        mLooper.dispatchAll();
+
+        advance(window - 1);
+        assertEquals(0, mKeyHandler.getSliderModesApplied());
+
+        advance(1);
+        assertEquals(1, mKeyHandler.getSliderModesApplied());
+        assertEquals(2, mKeyHandler.getSliderBouncesSuppressed());
+        // Bottom position is MODE_SILENT
+        verify(mAudioManager).setRingerModeInternal(AudioManager.RINGER_MODE_SILENT);
+    }
+
+    @Test
+    public void gestureStormReusesSensorAndReleasesIt() throws Exception {
+        List<Integer> expected = new ArrayList<>();
+        sendKey(GESTURE_CIRCLE);
+        expected.add(GESTURE_CIRCLE);
+        mLooper.dispatchAll();
+        SensorEventListener listener = getProximityListener();
+        listener.onSensorChanged(newProximityEvent(PROXIMITY_RANGE));
+        mLooper.dispatchAll();
+
+        for (int i = 1; i < STORM_EVENTS; i++) {
+            advance(STORM_INTERVAL);
+            int scanCode = GESTURE_CIRCLE + i % 6;
+            sendKey(scanCode);
+            expected.add(scanCode);
+            mLooper.dispatchAll();
+        }
+
+        // Every gesture resolved from the one sample, in order
+        assertEquals(expected, mLaunched);
+        verify(mSensorManager, times(1)).registerListener(any(SensorEventListener.class),
+                any(Sensor.class), anyInt(), any(Handler.class));
+        verify(mSensorManager, times(0)).unregisterListener(any(SensorEventListener.class));
+
+        advance(PROXIMITY_IDLE_TIMEOUT);
+        verify(mSensorManager).unregisterListener(listener);
+        verify(mProximityWakeLock, times(1)).acquire();
+        verify(mProximityWakeLock, times(1)).release();
+    }
+
+    @Test
+    public void sliderChatterAppliesOnlyFinalPosition() {
+        // Ends on the first one, i.e. bottom
+        int[] positions = new int[]{
+            KeyHandler.SLIDER_BOTTOM, KeyHandler.SLIDER_TOP, KeyHandler.SLIDER_MIDDLE,
+        };
+
+        for (int i = 0; i < STORM_EVENTS; i++) {
+            if (i > 0) {
+                advance(STORM_INTERVAL);
+            }
+            sendKey(positions[i % positions.length]);
+            mLooper.dispatchAll();
+        }
+        advance(mKeyHandler.getSliderSettleWindow());
+
+        assertEquals(1, mKeyHandler.getSliderModesApplied());
+        assertEquals(STORM_EVENTS - 1, mKeyHandler.getSliderBouncesSuppressed());
+        verify(mAudioManager, times(1)).setRingerModeInternal(anyInt());
+        verify(mAudioManager).setRingerModeInternal(AudioManager.RINGER_MODE_SILENT);
+    }
+
+    @Test
+    public void keyRepeatLaunchesOnce() throws Exception {
+        for (int i = 0; i < STORM_EVENTS; i++) {
+            if (i > 0) {
+                advance(STORM_INTERVAL);
+            }
+            sendKey(GESTURE_ARROW_UP, KeyEvent.ACTION_DOWN, i);
+            mLooper.dispatchAll();
+        }
+        sendKey(GESTURE_ARROW_UP);
+        mLooper.dispatchAll();
+        getProximityListener().onSensorChanged(newProximityEvent(PROXIMITY_RANGE));
+        mLooper.dispatchAll();
+        advance(PROXIMITY_IDLE_TIMEOUT);
+
+        assertEquals(1, mLaunched.size());
+        assertEquals(GESTURE_ARROW_UP, (int) mLaunched.get(0));
+        verify(mProximityWakeLock, times(1)).acquire();
+        verify(mProximityWakeLock, times(1)).release();
+    }
+
+    private void advance(long millis) {
+        mLooper.advance(millis);
+    }
+
+    private void sendKey(int scanCode) {
+        sendKey(scanCode, KeyEvent.ACTION_UP, 0);
+    }
+
+    private void sendKey(int scanCode, int action, int repeat) {
+        long now = mLooper.uptimeMillis();
+        mKeyHandler.handleKeyEvent(new KeyEvent(now, now, action,
+                KeyEvent.KEYCODE_UNKNOWN, repeat, 0, 0, scanCode));
+    }
+
+    private SensorEventListener getProximityListener() {
+        ArgumentCaptor<SensorEventListener> listener =
+                ArgumentCaptor.forClass(SensorEventListener.class);
+        verify(mSensorManager).registerListener(listener.capture(), any(Sensor.class),
+                anyInt(), any(Handler.class));
+        return listener.getValue();
+    }
+
+    private static SensorEvent newProximityEvent(float distance) throws Exception {
+        Constructor<SensorEvent> constructor =
+                SensorEvent.class.getDeclaredConstructor(int.class);
+        constructor.setAccessible(true);
+        SensorEvent event = constructor.newInstance(1);
+        event.values[0] = distance;
+        return event;
+    }
+}
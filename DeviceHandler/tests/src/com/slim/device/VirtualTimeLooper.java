@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 Android Ice Cold Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.slim.device;
+
+import android.os.Looper;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.test.TestLooper;
+
+import java.lang.reflect.Field;
+
+/**
+ * Looper and KeyHandler.Clock that only move when told to. Unlike
+ * TestLooper on its own, due messages are picked by the virtual time alone,
+ * so results don't depend on how fast the test runs.
+ *
+ * Virtual time starts far ahead of SystemClock: messages sent without a
+ * delay carry the real uptime and therefore always run before anything
+ * KeyHandler scheduled through the clock.
+ */
+class VirtualTimeLooper implements KeyHandler.Clock {
+    private static final long START_TIME = 1L << 40;
+
+    private static final Field sMessagesField;
+    private static final Field sNextField;
+
+    static {
+        try {
+            sMessagesField = MessageQueue.class.getDeclaredField("mMessages");
+            sMessagesField.setAccessible(true);
+            sNextField = Message.class.getDeclaredField("next");
+            sNextField.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final Looper mLooper = new TestLooper().getLooper();
+    private long mNow = START_TIME;
+
+    @Override
+    public long uptimeMillis() {
+        return mNow;
+    }
+
+    Looper getLooper() {
+        return mLooper;
+    }
+
+    /**
+     * Runs everything due up to now + millis in order, with the clock set
+     * to each message's time while it runs, and ends at now + millis.
+     */
+    void advance(long millis) {
+        long target = mNow + millis;
+        Message msg;
+        while ((msg = next(target)) != null) {
+            mNow = Math.max(mNow, msg.getWhen());
+            msg.getTarget().dispatchMessage(msg);
+        }
+        mNow = target;
+    }
+
+    /**
+     * Runs everything due without moving the clock.
+     */
+    void dispatchAll() {
+        advance(0);
+    }
+
+    private Message next(long target) {
+        MessageQueue queue = mLooper.getQueue();
+        try {
+            synchronized (queue) {
+                Message head = (Message) sMessagesField.get(queue);
+                if (head == null || head.getWhen() > target) {
+                    return null;
+                }
+                sMessagesField.set(queue, sNextField.get(head));
+                sNextField.set(head, null);
+                return head;
+            }
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+}